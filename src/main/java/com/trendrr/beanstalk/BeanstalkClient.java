@@ -1,7 +1,9 @@
 package com.trendrr.beanstalk;
 
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -63,7 +65,7 @@ public class BeanstalkClient {
      * @throws BeanstalkException If an unexpected response is received from the server, or other unexpected
      *                            problem occurs.
      */
-    public void bury(BeanstalkJob job, int priority) throws BeanstalkException {
+    public void bury(BeanstalkJob job, long priority) throws BeanstalkException {
         try {
             this.init();
             String command = "bury " + job.getId() + " " + priority + "\r\n";
@@ -114,6 +116,32 @@ public class BeanstalkClient {
         }
     }
 
+    /**
+     * Deletes many jobs in one round trip. All commands are written in a single flush, then the replies are read in
+     * order.
+     *
+     * @param ids The ids of the jobs to delete.
+     * @return One result per id, in order.
+     */
+    public List<BeanstalkResult> deleteAll(long[] ids) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (long id : ids) {
+            byte[] command = ("delete " + id + "\r\n").getBytes();
+            buf.write(command, 0, command.length);
+        }
+        return this.pipeline(buf.toByteArray(), ids, "DELETED");
+    }
+
+    public List<BeanstalkResult> deleteAll(List<BeanstalkJob> jobs) {
+        return this.deleteAll(ids(jobs));
+    }
+
+    private static long[] ids(List<BeanstalkJob> jobs) {
+        long[] ids = new long[jobs.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = jobs.get(i).getId();
+        return ids;
+    }
+
     public void ignoreTube(String tube) throws BeanstalkException {
         try {
             this.init();
@@ -162,7 +190,79 @@ public class BeanstalkClient {
         }
     }
 
-    public void release(long id, int priority, int delay) throws BeanstalkException {
+    /**
+     * Puts many jobs into the currently used queue in one round trip. All commands are written in a single flush, then
+     * the replies are read in order.
+     *
+     * @param priority The priority for every job.
+     * @param delay    The delay for every job.
+     * @param ttr      The time-to-run for every job.
+     * @param data     The data of each job.
+     * @return One result per job, in order, holding the inserted job's id.
+     */
+    public List<BeanstalkResult> putAll(long priority, int delay, int ttr, List<byte[]> data) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (byte[] d : data) {
+            byte[] command = ("put " + priority + " " + delay + " " + ttr + " " + d.length + "\r\n").getBytes();
+            buf.write(command, 0, command.length);
+            buf.write(d, 0, d.length);
+            buf.write('\r');
+            buf.write('\n');
+        }
+        return this.pipeline(buf.toByteArray(), new long[data.size()], "INSERTED");
+    }
+
+    /**
+     * Writes pipelined commands in one flush and reads their replies in order.
+     *
+     * @param commands The encoded commands.
+     * @param ids      The job id each command is for (0 for puts).
+     * @param expected The reply prefix that marks success.
+     * @return One result per command.
+     */
+    private List<BeanstalkResult> pipeline(byte[] commands, long[] ids, String expected) {
+        List<BeanstalkResult> results = new ArrayList<>(ids.length);
+        if (ids.length == 0) return results;
+        try {
+            this.init();
+            log.finer("pipelining " + ids.length + " commands");
+            con.write(commands);
+            for (long id : ids) {
+                String line = con.readControlResponse();
+                log.finer(line);
+                if (!line.startsWith(expected)) {
+                    results.add(new BeanstalkResult(id, new BeanstalkException(line)));
+                } else if (expected.equals("INSERTED")) {
+                    results.add(new BeanstalkResult(Long.parseLong(line.replaceAll("[^0-9]", "")), null));
+                } else results.add(new BeanstalkResult(id, null));
+            }
+        } catch (BeanstalkException x) {
+            if (x instanceof BeanstalkDisconnectedException) this.reap = true;
+            // every command without a reply shares the failure
+            for (int i = results.size(); i < ids.length; i++) results.add(new BeanstalkResult(ids[i], x));
+        }
+        return results;
+    }
+
+    /**
+     * Releases many jobs in one round trip. All commands are written in a single flush, then the replies are read in
+     * order.
+     *
+     * @param jobs     The jobs to release. These jobs must previously have been reserved by this client.
+     * @param priority The new priority for every job.
+     * @param delay    The delay for every job.
+     * @return One result per job, in order.
+     */
+    public List<BeanstalkResult> releaseAll(List<BeanstalkJob> jobs, long priority, int delay) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (BeanstalkJob job : jobs) {
+            byte[] command = ("release " + job.getId() + " " + priority + " " + delay + "\r\n").getBytes();
+            buf.write(command, 0, command.length);
+        }
+        return this.pipeline(buf.toByteArray(), ids(jobs), "RELEASED");
+    }
+
+    public void release(long id, long priority, int delay) throws BeanstalkException {
         try {
             this.init();
             String command = "release " + id + " " + priority + " " + delay + "\r\n";
@@ -190,10 +290,39 @@ public class BeanstalkClient {
      * @throws BeanstalkException If an unexpected response is received from the server, or other unexpected
      *                            problem occurs.
      */
-    public void release(BeanstalkJob job, int priority, int delay) throws BeanstalkException {
+    public void release(BeanstalkJob job, long priority, int delay) throws BeanstalkException {
         release(job.getId(), priority, delay);
     }
 
+    /**
+     * Peeks at the next ready job in the currently used queue, without reserving it.
+     *
+     * @return The next ready job, or null if there is none.
+     * @throws BeanstalkException If an unexpected response is received from the server, or other unexpected
+     *                            problem occurs.
+     */
+    public BeanstalkJob peekReady() throws BeanstalkException {
+        try {
+            this.init();
+            String command = "peek-ready\r\n";
+            log.finer(command);
+            con.write(command);
+            String line = con.readControlResponse();
+            log.finer(line);
+            if (line.startsWith("NOT_FOUND")) return null;
+            if (!line.startsWith("FOUND")) throw new BeanstalkException(line);
+            String[] tmp = line.split("\\s+");
+            BeanstalkJob job = new BeanstalkJob();
+            job.setId(Long.parseLong(tmp[1]));
+            job.setData(con.readBytes(Integer.parseInt(tmp[2])));
+            job.setClient(this);
+            return job;
+        } catch (BeanstalkDisconnectedException x) {
+            this.reap = true;
+            throw x;
+        }
+    }
+
     /**
      * Reserves a job from the queue.
      *
@@ -235,6 +364,29 @@ public class BeanstalkClient {
         }
     }
 
+    /**
+     * stats for a single job, as the YAML dictionary returned by the server (includes "pri" and "releases")
+     *
+     * @param id The id of the job.
+     * @throws BeanstalkException If the job does not exist, or other unexpected problem occurs.
+     */
+    public String jobStats(long id) throws BeanstalkException {
+        try {
+            this.init();
+            String command = "stats-job " + id + "\r\n";
+            log.finer(command);
+            con.write(command);
+            String line = con.readControlResponse();
+            log.finer(line);
+            if (!line.startsWith("OK")) throw new BeanstalkException(line);
+            int numBytes = Integer.parseInt(line.split(" ")[1]);
+            return new String(con.readBytes(numBytes));
+        } catch (BeanstalkDisconnectedException x) {
+            this.reap = true;
+            throw x;
+        }
+    }
+
     /**
      * stats for the current tube
      *
@@ -253,7 +405,7 @@ public class BeanstalkClient {
             if (!line.startsWith("OK")) throw new BeanstalkException(line);
             int numBytes = Integer.parseInt(line.split(" ")[1]);
             String response = new String(con.readBytes(numBytes));
-            log.info(response);
+            log.finer(response);
             return response;
         } catch (BeanstalkDisconnectedException x) {
             this.reap = true;
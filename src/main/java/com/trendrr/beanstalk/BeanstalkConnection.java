@@ -96,53 +96,70 @@ public class BeanstalkConnection {
 
     /**
      * returns the control response.  ends with \r\n
+     * <p/>
+     * Bytes read past the response are kept, so responses to pipelined commands are returned by later calls.
      *
      * @return
      */
     public String readControlResponse() throws BeanstalkException {
-        String response = null;
+        String response = this.takeLine();
         int count = 0;
         while (response == null) {
             count++;
-            outbuf = new ByteArrayOutputStream();
             ByteBuffer buf = ByteBuffer.allocate(4096);
             if (count > 10000) {
                 throw new BeanstalkException("Buffer has been empty for more than 100 seconds.");
             }
+            int numRead = 0;
             try {
-                if (channel.read(buf) == 0) {
-                    log.warning("Nothing in the buffer, sleeping for 100 millis; will try again.");
-                    try {
-                        Thread.sleep(100);
-                    } catch (Exception x) {
-                        log.log(Level.SEVERE, "Caught", x);
-                    }
-                    continue;
-                }
+                numRead = channel.read(buf);
             } catch (Exception x) {
                 this.throwException(x);
             }
-            byte[] bytes = buf.array();
-            ByteArrayOutputStream stringBuf = new ByteArrayOutputStream();
-            byte lastByte = ' ';
-            for (int i = 0; i < buf.position(); i++) {
-                byte curByte = bytes[i];
-                if (lastByte == '\r' && curByte == '\n' && response == null) {
-                    response = new String(stringBuf.toByteArray()).trim();
-                    if (response.isEmpty()) {
-                        log.warning("Errant line end found, possibly from the previous request. Skipping.");
-                        response = null;
-                    }
-                    continue;
+            if (numRead < 0) throw new BeanstalkDisconnectedException("Connection closed by the server.");
+            if (numRead == 0) {
+                log.warning("Nothing in the buffer, sleeping for 100 millis; will try again.");
+                try {
+                    Thread.sleep(100);
+                } catch (Exception x) {
+                    log.log(Level.SEVERE, "Caught", x);
                 }
-                if (response == null) stringBuf.write(curByte);
-                else outbuf.write(curByte);
-                lastByte = curByte;
+                continue;
             }
+            outbuf.write(buf.array(), 0, buf.position());
+            response = this.takeLine();
         }
         return response;
     }
 
+    /**
+     * takes the first complete, non-empty line out of the buffered bytes
+     *
+     * @return the line, or null if no complete line is buffered
+     */
+    private String takeLine() {
+        byte[] bytes = this.outbuf.toByteArray();
+        int start = 0;
+        for (int i = 1; i < bytes.length; i++) {
+            if (bytes[i - 1] != '\r' || bytes[i] != '\n') continue;
+            String response = new String(bytes, start, i - 1 - start).trim();
+            start = i + 1;
+            if (response.isEmpty()) {
+                // the line end following a job body
+                log.finer("Errant line end found, possibly from the previous request. Skipping.");
+                continue;
+            }
+            this.outbuf = new ByteArrayOutputStream();
+            this.outbuf.write(bytes, start, bytes.length - start);
+            return response;
+        }
+        if (start > 0) {
+            this.outbuf = new ByteArrayOutputStream();
+            this.outbuf.write(bytes, start, bytes.length - start);
+        }
+        return null;
+    }
+
     public void write(byte[] bytes) throws BeanstalkException {
         try {
             ByteBuffer buf = ByteBuffer.wrap(bytes);
@@ -0,0 +1,33 @@
+package com.trendrr.beanstalk;
+
+/**
+ * The outcome of one command in a pipelined batch.
+ */
+public class BeanstalkResult {
+
+    private final long id;
+    private final BeanstalkException error;
+
+    public BeanstalkResult(long id, BeanstalkException error) {
+        this.id = id;
+        this.error = error;
+    }
+
+    /**
+     * @return The error for this command, or null if it succeeded.
+     */
+    public BeanstalkException getError() {
+        return this.error;
+    }
+
+    /**
+     * @return The id of the job the command was for (the new job's id for puts; 0 if a put failed).
+     */
+    public long getId() {
+        return this.id;
+    }
+
+    public boolean isSuccess() {
+        return this.error == null;
+    }
+}
@@ -0,0 +1,159 @@
+package io.statik.report;
+
+import com.trendrr.beanstalk.BeanstalkClient;
+import com.trendrr.beanstalk.BeanstalkException;
+import com.trendrr.beanstalk.BeanstalkJob;
+import io.statik.report.processing.HyperLogLog;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Class to store a representative sample of reports while the processors are falling behind.
+ * <p/>
+ * Every <code>config.sampling.check_seconds</code>, the ready jobs and the age of the oldest ready job are read from
+ * each tube. While either exceeds its threshold (<code>max_ready_jobs</code>, <code>max_lag_seconds</code>), the
+ * sample rate drops in proportion to the overload, down to <code>min_rate</code>; once load falls, it climbs back to 1
+ * by <code>recovery_step</code> per check. Reports are accepted by comparing a hash of their server UUID with the rate,
+ * so the same servers stay in the sample from one report to the next, and a lower rate always samples a subset of a
+ * higher one. Checks run on the sampler's own thread, so slow scheduled tasks cannot hold the rate down.
+ */
+public class AdaptiveSampler implements Runnable {
+
+    /**
+     * Rates are rounded down to a multiple of one over this, keeping the number of distinct rates recorded in rollups
+     * small.
+     */
+    private static final int RATE_STEPS = 20;
+    private final ReportServer rs;
+    private final long maxReady;
+    private final long maxLag;
+    private final double minRate;
+    private final double recoveryStep;
+    private final int checkInterval;
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "Sample rate check");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private volatile double rate = 1D;
+
+    /**
+     * Creates a new AdaptiveSampler from the server's configuration.
+     *
+     * @param rs ReportServer this is running from
+     */
+    public AdaptiveSampler(final ReportServer rs) {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        this.maxReady = Math.max(1, c.getInt("config.sampling.max_ready_jobs", 50000));
+        this.maxLag = Math.max(1, c.getInt("config.sampling.max_lag_seconds", 300));
+        final double minRate = Math.min(1D, c.getDouble("config.sampling.min_rate", 0.05D));
+        this.minRate = Math.max(1D / AdaptiveSampler.RATE_STEPS, AdaptiveSampler.quantize(minRate));
+        this.recoveryStep = Math.max(1D / AdaptiveSampler.RATE_STEPS, c.getDouble("config.sampling.recovery_step", 0.1D));
+        this.checkInterval = Math.max(1, c.getInt("config.sampling.check_seconds", 5));
+    }
+
+    private static double quantize(final double rate) {
+        return Math.floor(rate * AdaptiveSampler.RATE_STEPS + 1e-9D) / AdaptiveSampler.RATE_STEPS;
+    }
+
+    private static long getStat(final String yaml, final String name) {
+        for (final String line : yaml.split("\n")) {
+            final String[] parts = line.split(":", 2);
+            if (parts.length == 2 && parts[0].trim().equals(name)) return Long.parseLong(parts[1].trim());
+        }
+        return 0L;
+    }
+
+    /**
+     * Decides if a server's report belongs in the sample at the current rate.
+     *
+     * @param serverUUID UUID of the server
+     * @return Rate the report was sampled at, to be recorded with it, or 0 if it should not be stored
+     */
+    public double sample(final UUID serverUUID) {
+        final double rate = this.rate;
+        if (rate >= 1D) return 1D;
+        return (AdaptiveSampler.hash(serverUUID) >>> 11) * 0x1.0p-53 < rate ? rate : 0D;
+    }
+
+    /**
+     * Hashes a server UUID for sampling. The HyperLogLog hash is remixed with a different seed: sampling on any of its
+     * own bits would skew the register or rank of the servers kept, and with it the distinct counts of sampled reports.
+     *
+     * @param serverUUID UUID of the server
+     * @return Hash, independent of {@link io.statik.report.processing.HyperLogLog#hash(java.util.UUID)}
+     */
+    private static long hash(final UUID serverUUID) {
+        long h = HyperLogLog.hash(serverUUID) ^ 0x2545f4914f6cdd1dL;
+        h ^= h >>> 31;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 27;
+        h *= 0x94d049bb133111ebL;
+        h ^= h >>> 31;
+        return h;
+    }
+
+    /**
+     * Gets the fraction of servers whose reports are currently stored.
+     *
+     * @return Sample rate, between <code>min_rate</code> and 1
+     */
+    public double getRate() {
+        return this.rate;
+    }
+
+    /**
+     * Starts checking the load every <code>config.sampling.check_seconds</code>.
+     */
+    public void start() {
+        this.checker.scheduleWithFixedDelay(this, this.checkInterval, this.checkInterval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.check();
+        } catch (final RuntimeException ex) {
+            // an escaped exception would cancel the scheduled check, freezing the rate
+            this.rs.getLogger().log(Level.SEVERE, "An unexpected exception escaped the sample rate check: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reads the load of every tube and moves the sample rate towards what it calls for.
+     */
+    private void check() {
+        long ready = 0L;
+        long lag = 0L;
+        for (final ReportRouter.Tube tube : this.rs.getReportRouter().getTubes()) {
+            final BeanstalkClient bsc = this.rs.getNewBeanstalkClient(tube.getName());
+            try {
+                ready += AdaptiveSampler.getStat(bsc.tubeStats(tube.getName()), "current-jobs-ready");
+                final BeanstalkJob oldest = bsc.peekReady();
+                if (oldest != null) lag = Math.max(lag, AdaptiveSampler.getStat(bsc.jobStats(oldest.getId()), "age"));
+            } catch (final BeanstalkException | NumberFormatException ex) {
+                this.rs.getLogger().log(Level.WARNING, "Could not read the load of tube " + tube.getName() + ": " + ex.getMessage(), ex);
+                return; // keep the current rate
+            } finally {
+                bsc.close();
+            }
+        }
+        final double pressure = Math.max((double) ready / this.maxReady, (double) lag / this.maxLag);
+        final double target = pressure <= 1D ? 1D : Math.max(this.minRate, AdaptiveSampler.quantize(1D / pressure));
+        final double previous = this.rate;
+        // drop straight to the target, but recover gradually so the rate does not oscillate
+        final double next = target < previous ? target : Math.min(target, AdaptiveSampler.quantize(previous + this.recoveryStep));
+        if (next == previous) return;
+        this.rate = next;
+        this.rs.getLogger().info("Sample rate is now " + next + " (" + ready + " ready jobs, " + lag + "s lag).");
+    }
+}
@@ -0,0 +1,166 @@
+package io.statik.report;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler that hands records to a background thread, so logging never blocks the thread doing the logging.
+ * <p/>
+ * Records go into a bounded queue that the writer thread drains into the wrapped handler; when the queue is full,
+ * records are dropped and counted rather than waited on. Before queueing, records are rate limited per site: a site
+ * is the thrown exception's type and throwing frame, or the logging class and method for records without one. Each
+ * site may log <code>burst</code> records per window, and the writer reports how many similar records were suppressed
+ * once the window ends.
+ */
+public class AsyncLogHandler extends Handler {
+
+    /**
+     * Sites tracked at once. Past this, new sites are not rate limited until the next sweep clears idle ones.
+     */
+    private static final int MAX_SITES = 1024;
+    private final Handler delegate;
+    private final BlockingQueue<LogRecord> queue;
+    private final ConcurrentMap<String, Site> sites = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int burst;
+    private final long window;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates and starts a new AsyncLogHandler.
+     *
+     * @param delegate Handler that formats and writes records, only ever called from the writer thread
+     * @param capacity Records the queue holds before dropping
+     * @param burst    Records each site may log per window
+     * @param window   Window length in milliseconds
+     */
+    public AsyncLogHandler(final Handler delegate, final int capacity, final int burst, final long window) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.burst = Math.max(1, burst);
+        this.window = Math.max(1L, window);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AsyncLogHandler.this.write();
+            }
+        }, "Log writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private static String getSite(final LogRecord record) {
+        final Throwable t = record.getThrown();
+        if (t == null) {
+            // the message often carries ids and counts, so it would make every record a site of its own
+            return record.getLevel().getName() + ":" + record.getLoggerName() + ":" + record.getSourceClassName() + "." + record.getSourceMethodName();
+        }
+        final StackTraceElement[] trace = t.getStackTrace();
+        return record.getLevel().getName() + ":" + t.getClass().getName() + "@" + (trace.length > 0 ? trace[0] : "?");
+    }
+
+    /**
+     * Stops the writer thread after it has written every queued record.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.writer.interrupt();
+        try {
+            this.writer.join(5000L);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.delegate.close();
+    }
+
+    @Override
+    public void flush() {
+        // the writer flushes the delegate whenever the queue runs dry
+    }
+
+    private void offer(final LogRecord record) {
+        if (!this.queue.offer(record)) this.dropped.incrementAndGet();
+    }
+
+    @Override
+    public void publish(final LogRecord record) {
+        if (this.closed || !this.isLoggable(record)) return;
+        final String key = AsyncLogHandler.getSite(record);
+        Site site = this.sites.get(key);
+        if (site == null && this.sites.size() < AsyncLogHandler.MAX_SITES) {
+            final Site created = new Site(record, System.currentTimeMillis());
+            site = this.sites.putIfAbsent(key, created);
+            if (site == null) site = created;
+        }
+        if (site != null && site.count.incrementAndGet() > this.burst) return; // reported when the window ends
+        this.offer(record);
+    }
+
+    /**
+     * Reports and forgets sites whose window has ended.
+     *
+     * @param now Current time in milliseconds
+     */
+    private void sweep(final long now) {
+        for (final Map.Entry<String, Site> entry : this.sites.entrySet()) {
+            final Site site = entry.getValue();
+            if (now - site.start < this.window) continue;
+            this.sites.remove(entry.getKey());
+            final int suppressed = site.count.get() - this.burst;
+            if (suppressed <= 0) continue;
+            final LogRecord summary = new LogRecord(site.level, suppressed + " similar messages suppressed: " + site.message);
+            summary.setLoggerName(site.loggerName);
+            this.delegate.publish(summary);
+        }
+        final long dropped = this.dropped.getAndSet(0L);
+        if (dropped > 0L) this.delegate.publish(new LogRecord(Level.WARNING, dropped + " log messages dropped; the log queue was full."));
+    }
+
+    private void write() {
+        long lastSweep = System.currentTimeMillis();
+        while (true) {
+            LogRecord record = null;
+            try {
+                record = this.queue.poll(100L, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException ex) {
+                if (!this.closed) continue;
+            }
+            if (record != null) this.delegate.publish(record);
+            final long now = System.currentTimeMillis();
+            if (now - lastSweep >= 1000L || (this.closed && record == null)) {
+                lastSweep = now;
+                this.sweep(this.closed ? Long.MAX_VALUE : now);
+            }
+            if (record != null) continue;
+            this.delegate.flush();
+            if (this.closed && this.queue.isEmpty()) return;
+        }
+    }
+
+    private static class Site {
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final Level level;
+        private final String message;
+        private final String loggerName;
+        private final long start;
+
+        private Site(final LogRecord first, final long start) {
+            this.level = first.getLevel();
+            this.message = first.getThrown() == null ? first.getMessage() : first.getThrown().toString();
+            this.loggerName = first.getLoggerName();
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package io.statik.report;
+
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Class to stop reading from sockets while storage is falling behind.
+ * <p/>
+ * Tracks a moving average of how long handling a client message takes, which is dominated by MongoDB and beanstalkd.
+ * Messages are handled on the event loops, so the number in flight is bounded by the thread count and says nothing
+ * about load; latency is what rises. When it crosses <code>config.backpressure.high_latency_ms</code>, reads are
+ * paused on every client channel and accepts are paused on the server channel, so the kernel's buffers and backlog
+ * absorb the excess instead of the heap. Reads resume once it is back under <code>low_latency_ms</code>. Since no
+ * latency samples arrive while paused, a pause longer than <code>max_pause_ms</code> resumes anyway to probe whether
+ * storage has recovered; that check runs on the controller's own thread, so no other scheduled task can delay it.
+ */
+public class BackpressureController implements Runnable {
+
+    private final ReportServer rs;
+    private final ChannelGroup children = new DefaultChannelGroup("clients", GlobalEventExecutor.INSTANCE);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "Backpressure");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final long highLatency;
+    private final long lowLatency;
+    private final long maxPause;
+    private final double smoothing;
+    private volatile Channel server = null;
+    private volatile boolean paused = false;
+    private double latency = 0D;
+    private long pausedAt = 0L;
+
+    /**
+     * Creates a new BackpressureController from the server's configuration.
+     *
+     * @param rs ReportServer this is running from
+     */
+    public BackpressureController(final ReportServer rs) {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        this.highLatency = c.getInt("config.backpressure.high_latency_ms", 500) * 1000000L;
+        this.lowLatency = Math.min(this.highLatency, c.getInt("config.backpressure.low_latency_ms", 100) * 1000000L);
+        this.maxPause = c.getInt("config.backpressure.max_pause_ms", 2000) * 1000000L;
+        this.smoothing = Math.max(0.01D, Math.min(1D, c.getDouble("config.backpressure.smoothing", 0.2D)));
+    }
+
+    /**
+     * Tracks a new client channel, pausing it straight away if reads are paused.
+     *
+     * @param ch Client channel
+     */
+    public void addChild(final Channel ch) {
+        this.children.add(ch); // removed from the group when closed
+        if (this.paused) ch.config().setAutoRead(false);
+    }
+
+    /**
+     * Marks a message as being handled.
+     */
+    public void begin() {
+        this.inFlight.incrementAndGet();
+    }
+
+    /**
+     * Marks a message as handled, successfully or not.
+     *
+     * @param startNanos {@link System#nanoTime()} when handling began
+     */
+    public void end(final long startNanos) {
+        this.inFlight.decrementAndGet();
+        final long elapsed = System.nanoTime() - startNanos;
+        synchronized (this) {
+            this.latency += this.smoothing * (elapsed - this.latency);
+        }
+        this.update();
+    }
+
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.update();
+        } catch (final RuntimeException ex) {
+            // an escaped exception would cancel the tick, and a paused listener would never resume
+            this.rs.getLogger().log(Level.SEVERE, "An unexpected exception escaped the backpressure check: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void setAutoRead(final boolean autoRead) {
+        final Channel server = this.server;
+        if (server != null) server.config().setAutoRead(autoRead);
+        for (final Channel ch : this.children) ch.config().setAutoRead(autoRead);
+    }
+
+    /**
+     * Starts checking the watermarks every 100 ms, so a pause ends even when no messages are handled.
+     */
+    public void start() {
+        this.ticker.scheduleWithFixedDelay(this, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the server channel to pause accepts on.
+     *
+     * @param server Bound server channel
+     */
+    public void setServer(final Channel server) {
+        this.server = server;
+        if (this.paused) server.config().setAutoRead(false);
+    }
+
+    /**
+     * Pauses or resumes reads if a watermark has been crossed.
+     */
+    private synchronized void update() {
+        final int inFlight = this.inFlight.get();
+        if (!this.paused) {
+            if (this.latency < this.highLatency) return;
+            this.paused = true;
+            this.pausedAt = System.nanoTime();
+            this.setAutoRead(false);
+            this.rs.getLogger().warning("Pausing reads: " + inFlight + " messages in flight, " + (long) (this.latency / 1000000D) + " ms latency.");
+            return;
+        }
+        final boolean probe = System.nanoTime() - this.pausedAt >= this.maxPause;
+        if (this.latency > this.lowLatency && !probe) return;
+        if (probe) this.latency = this.lowLatency; // forget the stale average; fresh samples decide from here
+        this.paused = false;
+        this.setAutoRead(true);
+        this.rs.getLogger().info("Resuming reads: " + inFlight + " messages in flight.");
+    }
+}
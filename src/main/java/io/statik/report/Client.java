@@ -11,22 +11,96 @@ public class Client {
     private final ReportServer rs;
     private final InetSocketAddress remoteAddress;
     private UUID serverUUID = null;
+    private int version = -1;
+    private Compression compression = Compression.NONE;
+    private boolean batch = false;
+    private long pluginSet = 0L;
+    private TraceContext trace = null;
     private Stage stage;
     private Request request;
 
     public Client(final ReportServer rs, final InetSocketAddress remoteAddress) {
+        this(rs, remoteAddress, true);
+    }
+
+    private Client(final ReportServer rs, final InetSocketAddress remoteAddress, final boolean register) {
         this.rs = rs;
         this.remoteAddress = remoteAddress;
         this.stage = Stage.INTRODUCTION;
+        if (!register) return;
         synchronized (this.rs.getClients()) {
             this.rs.getClients().add(this);
         }
     }
 
+    /**
+     * Creates a Client for a single datagram. It is not registered with the server, since it has no connection to
+     * outlive.
+     *
+     * @param rs            ReportServer this is running from
+     * @param remoteAddress Address the datagram came from
+     * @return Client
+     */
+    public static Client forDatagram(final ReportServer rs, final InetSocketAddress remoteAddress) {
+        return new Client(rs, remoteAddress, false);
+    }
+
     public void destroy() {
         this.rs.getClients().remove(this);
     }
 
+    /**
+     * Gets the payload compression negotiated during the introduction.
+     *
+     * @return Compression (never null)
+     */
+    public Compression getCompression() {
+        return this.compression;
+    }
+
+    public void setCompression(final Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Checks if this Client introduced itself as a batch sender, reporting for many servers over one connection.
+     *
+     * @return true if this Client sends batch frames
+     */
+    public boolean isBatch() {
+        return this.batch;
+    }
+
+    public void setBatch(final boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Gets the fingerprint of the plugin set last stored for this Client's server, as found during the introduction.
+     *
+     * @return Fingerprint, or 0 if none is known
+     */
+    public long getPluginSet() {
+        return this.pluginSet;
+    }
+
+    public void setPluginSet(final long pluginSet) {
+        this.pluginSet = pluginSet;
+    }
+
+    /**
+     * Gets the trace context of the message being handled for this Client.
+     *
+     * @return TraceContext, or null if the message is not traced
+     */
+    public TraceContext getTrace() {
+        return this.trace;
+    }
+
+    public void setTrace(final TraceContext trace) {
+        this.trace = trace;
+    }
+
     public Request getCurrentRequest() {
         return this.request;
     }
@@ -58,6 +132,19 @@ public class Client {
         this.stage = stage;
     }
 
+    /**
+     * Gets the protocol version this Client introduced itself with.
+     *
+     * @return Protocol version, or -1 if the Client has not been introduced
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    public void setVersion(final int version) {
+        this.version = version;
+    }
+
     public UUID getUUID() {
         return this.uuid;
     }
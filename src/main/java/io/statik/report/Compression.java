@@ -0,0 +1,52 @@
+package io.statik.report;
+
+/**
+ * Payload compression codecs a client may negotiate during its introduction.
+ */
+public enum Compression {
+    NONE((byte) 0, "none"),
+    DEFLATE((byte) 1, "deflate"),
+    SNAPPY((byte) 2, "snappy");
+
+    private final byte id;
+    private final String name;
+
+    private Compression(final byte id, final String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Gets the codec with the given wire id.
+     *
+     * @param id Wire id
+     * @return Compression, or null if the id is unknown
+     */
+    public static Compression fromId(final byte id) {
+        for (final Compression compression : Compression.values()) {
+            if (compression.getId() == id) return compression;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the codec with the given configuration name.
+     *
+     * @param name Configuration name, such as <code>deflate</code>
+     * @return Compression, or null if the name is unknown
+     */
+    public static Compression fromName(final String name) {
+        for (final Compression compression : Compression.values()) {
+            if (compression.getName().equalsIgnoreCase(name)) return compression;
+        }
+        return null;
+    }
+
+    public byte getId() {
+        return this.id;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+}
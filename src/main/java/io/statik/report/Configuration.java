@@ -98,6 +98,18 @@ public class Configuration {
         return this.configRoot;
     }
 
+    /**
+     * Gets a double from the given path.
+     *
+     * @param path Path to get double from
+     * @param def  Default value to use if the path cannot be found
+     * @return double
+     */
+    public double getDouble(final String path, final double def) {
+        final JSONObject parent = this.getJSONObject(this.getParent(path));
+        return parent == null ? def : parent.optDouble(this.getLastNode(path), def);
+    }
+
     /**
      * Gets an integer from the given path.
      *
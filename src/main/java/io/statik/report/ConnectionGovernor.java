@@ -0,0 +1,152 @@
+package io.statik.report;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class to limit connections per remote address.
+ * <p/>
+ * Each address gets a cap on concurrent connections and a token bucket for new connections. Addresses are tracked in
+ * a table bounded by <code>config.governor.max_addresses</code>; idle addresses expire after
+ * <code>config.governor.expiry_seconds</code>, and the least recently seen address without open connections is evicted
+ * when the table is full. Addresses with open connections are never evicted, as that would reset their cap; if every
+ * address in a full table has one, new addresses are refused.
+ * <p/>
+ * Datagram senders are rate limited in a table of their own (<code>config.udp.rate_per_ip</code> and
+ * <code>burst_per_ip</code>), as their source addresses can be spoofed: flooding it must not evict, or use up the
+ * tokens of, the addresses holding connections.
+ */
+public class ConnectionGovernor {
+
+    private final int maxConnections;
+    private final double acceptRate;
+    private final double acceptBurst;
+    private final long expiryMillis;
+    private final int maxAddresses;
+    private final Map<InetAddress, Entry> entries;
+    private final double datagramRate;
+    private final double datagramBurst;
+    private final Map<InetAddress, Entry> datagrams;
+    private long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Creates a new ConnectionGovernor from the server's configuration.
+     *
+     * @param c Configuration to read limits from
+     */
+    public ConnectionGovernor(final Configuration c) {
+        this.maxConnections = c.getInt("config.governor.max_connections_per_ip", 16);
+        this.acceptRate = c.getDouble("config.governor.accept_rate", 5D);
+        this.acceptBurst = Math.max(1, c.getInt("config.governor.accept_burst", 20));
+        this.expiryMillis = c.getInt("config.governor.expiry_seconds", 300) * 1000L;
+        this.maxAddresses = Math.max(1, c.getInt("config.governor.max_addresses", 65536));
+        this.entries = new LinkedHashMap<>(1024, 0.75F, true); // iterates from the least recently seen
+        this.datagramRate = c.getDouble("config.udp.rate_per_ip", 1D);
+        this.datagramBurst = Math.max(1, c.getInt("config.udp.burst_per_ip", 5));
+        final int maxAddresses = this.maxAddresses;
+        this.datagrams = new LinkedHashMap<InetAddress, Entry>(1024, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<InetAddress, Entry> eldest) {
+                return this.size() > maxAddresses; // nothing stays open for a datagram, so any entry may go
+            }
+        };
+    }
+
+    /**
+     * Makes room for a new address by evicting the least recently seen address without open connections.
+     *
+     * @return true if there is room, false if every address in the full table has open connections
+     */
+    private boolean makeRoom() {
+        if (this.entries.size() < this.maxAddresses) return true;
+        for (final Iterator<Entry> it = this.entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().connections == 0) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases a connection slot taken by {@link #tryAcquire(java.net.InetAddress)}.
+     *
+     * @param address Remote address of the closed connection
+     */
+    public synchronized void release(final InetAddress address) {
+        final Entry entry = this.entries.get(address);
+        if (entry != null && entry.connections > 0) entry.connections--;
+    }
+
+    /**
+     * Removes addresses with no open connections that have not been seen within the expiry, at most once per second.
+     *
+     * @param now Current time in milliseconds
+     */
+    private void sweep(final long now) {
+        if (now - this.lastSweep < 1000L) return;
+        this.lastSweep = now;
+        for (final Iterator<Entry> it = this.entries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.connections == 0 && now - entry.lastSeen > this.expiryMillis) it.remove();
+        }
+    }
+
+    /**
+     * Checks if a new connection from the given address is allowed, taking a connection slot and an accept token if
+     * so.
+     *
+     * @param address Remote address of the new connection
+     * @return true if the connection may proceed, false if it should be dropped
+     */
+    public synchronized boolean tryAcquire(final InetAddress address) {
+        final long now = System.currentTimeMillis();
+        this.sweep(now);
+        Entry entry = this.entries.get(address);
+        if (entry == null) {
+            if (!this.makeRoom()) return false;
+            entry = new Entry(this.acceptBurst, now);
+            this.entries.put(address, entry);
+        }
+        entry.tokens = Math.min(this.acceptBurst, entry.tokens + (now - entry.lastSeen) * this.acceptRate / 1000D);
+        entry.lastSeen = now;
+        if (entry.connections >= this.maxConnections || entry.tokens < 1D) return false;
+        entry.tokens -= 1D;
+        entry.connections++;
+        return true;
+    }
+
+    /**
+     * Checks if a datagram from the given address is within the sender's rate, taking a token if so.
+     *
+     * @param address Source address of the datagram
+     * @return true if the datagram may be handled, false if it should be dropped
+     */
+    public synchronized boolean tryAcquireDatagram(final InetAddress address) {
+        final long now = System.currentTimeMillis();
+        Entry entry = this.datagrams.get(address);
+        if (entry == null) {
+            entry = new Entry(this.datagramBurst, now);
+            this.datagrams.put(address, entry);
+        }
+        entry.tokens = Math.min(this.datagramBurst, entry.tokens + (now - entry.lastSeen) * this.datagramRate / 1000D);
+        entry.lastSeen = now;
+        if (entry.tokens < 1D) return false;
+        entry.tokens -= 1D;
+        return true;
+    }
+
+    private static class Entry {
+
+        private int connections = 0;
+        private double tokens;
+        private long lastSeen;
+
+        private Entry(final double tokens, final long lastSeen) {
+            this.tokens = tokens;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
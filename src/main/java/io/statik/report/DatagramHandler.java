@@ -0,0 +1,112 @@
+package io.statik.report;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Class to handle reports sent as single datagrams, see {@link io.statik.report.MessageHandler#handleDatagram}.
+ * <p/>
+ * The channel's event loop only reads; each datagram is handed to one of <code>config.udp.threads</code> handler
+ * threads, since handling waits on MongoDB and beanstalkd. Datagrams over <code>config.udp.max_datagram_bytes</code>,
+ * from senders over their <code>rate_per_ip</code>, or arriving while <code>queue_size</code> datagrams are waiting are
+ * dropped without a reply, as the sender will retry anyway. Replies are never larger than the datagram they answer.
+ */
+public class DatagramHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+
+    private final ReportServer rs;
+    private final MessageHandler mh;
+    private final int maxDatagramBytes;
+    private final ExecutorService handlers;
+
+    /**
+     * Creates a new DatagramHandler and starts its handler threads.
+     *
+     * @param rs ReportServer this is running from
+     */
+    public DatagramHandler(final ReportServer rs) {
+        super(false); // released once handled
+        this.rs = rs;
+        this.mh = new MessageHandler(rs);
+        final Configuration c = this.rs.getConfiguration();
+        this.maxDatagramBytes = Math.max(21, Math.min(65507, c.getInt("config.udp.max_datagram_bytes", 1400)));
+        final int threads = Math.max(1, c.getInt("config.udp.threads", 4));
+        this.handlers = new ThreadPoolExecutor(
+            threads,
+            threads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, c.getInt("config.udp.queue_size", 1024))),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "Datagram handler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+        );
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final DatagramPacket packet) throws Exception {
+        final boolean allowed = packet.content().readableBytes() <= this.maxDatagramBytes
+            && this.rs.getConnectionGovernor().tryAcquireDatagram(packet.sender().getAddress());
+        if (!allowed) {
+            this.rs.getLogger().fine("Dropped an oversized or over-rate datagram from " + packet.sender() + ".");
+            packet.release();
+            return;
+        }
+        try {
+            this.handlers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    DatagramHandler.this.handle(ctx, packet);
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            this.rs.getLogger().fine("Dropped a datagram from " + packet.sender() + "; the handlers are behind.");
+            packet.release();
+        }
+    }
+
+    private void handle(final ChannelHandlerContext ctx, final DatagramPacket packet) {
+        final BackpressureController bc = this.rs.getBackpressureController();
+        final Client client = Client.forDatagram(this.rs, packet.sender());
+        final Tracer tracer = this.rs.getTracer();
+        client.setTrace(tracer == null ? null : tracer.sample());
+        final long start = System.nanoTime();
+        bc.begin();
+        try {
+            final ByteBuf reply = this.mh.handleDatagram(packet.content(), client);
+            ctx.writeAndFlush(new DatagramPacket(reply, packet.sender()));
+            final TraceContext trace = client.getTrace();
+            if (trace != null) {
+                trace.mark("replied");
+                tracer.export(trace, "ingest");
+            }
+        } catch (final Throwable t) {
+            this.rs.getLogger().warning("An exception occurred while reading a datagram:");
+            this.rs.getLogger().log(Level.WARNING, t.getMessage(), t);
+        } finally {
+            bc.end(start);
+            ReferenceCountUtil.release(packet);
+        }
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        this.handlers.shutdown();
+        super.channelInactive(ctx);
+    }
+}
@@ -40,6 +40,5 @@ public class EndOfTheLine extends ChannelInboundHandlerAdapter {
         }
         this.rs.getLogger().severe("An uncaught exception occurred somewhere in the pipeline:");
         this.rs.getLogger().log(Level.SEVERE, cause.getMessage(), cause);
-        cause.printStackTrace();
     }
 }
@@ -1,20 +1,33 @@
 package io.statik.report;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.trendrr.beanstalk.BeanstalkClient;
 import com.trendrr.beanstalk.BeanstalkException;
+import com.trendrr.beanstalk.BeanstalkResult;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.statik.report.ReportHandler.Stage;
+import io.statik.report.processing.PluginSets;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 
@@ -23,12 +36,30 @@ import java.util.logging.Level;
  */
 public class MessageHandler {
 
+    /**
+     * Version of the protocol clients must introduce themselves with.
+     */
+    private static final int PROTOCOL_VERSION = 1;
+    /**
+     * Introduction flag marking a client that sends batch frames for many servers.
+     */
+    private static final byte FLAG_BATCH = 0x10;
+    /**
+     * Introduction flag asking for the fingerprint of the server's stored plugin set, so unchanged plugin lists can be
+     * left out of the report.
+     */
+    private static final byte FLAG_DELTA = 0x20;
     private final ReportServer rs;
     private final String timestampCollection;
     private final Charset utf8 = Charset.forName("UTF-8");
     private final String badContent = this.createErrorResponse("Bad content.");
     private final String illegalContent = this.createErrorResponse("The content provided was an illegal type.");
     private final String internalError = this.createErrorResponse("An internal error occurred whilst processing your data.");
+    private final String dataQueued = new JSONStringer().object().key("result").value("Data queued for storage.").endObject().toString();
+    private final Set<Compression> compressions = EnumSet.of(Compression.NONE);
+    private final int maxBatchEntries;
+    private final boolean pluginSets;
+    private final String pluginSetChanged = this.createErrorResponse("The plugin set has changed; send the full plugin list.");
 
     /**
      * Creates a new MessageHandler.
@@ -38,6 +69,14 @@ public class MessageHandler {
     public MessageHandler(final ReportServer rs) {
         this.rs = rs;
         this.timestampCollection = this.rs.getConfiguration().getString("config.database.collections.timestamps", null);
+        this.maxBatchEntries = this.rs.getConfiguration().getInt("config.batch.max_entries", 500);
+        this.pluginSets = this.rs.getConfiguration().getBoolean("config.plugin_sets.enabled", false);
+        final JSONArray codecs = this.rs.getConfiguration().getJSONArray("config.compression.codecs");
+        if (codecs == null) return;
+        for (int i = 0; i < codecs.length(); i++) {
+            final Compression compression = Compression.fromName(codecs.optString(i));
+            if (compression != null) this.compressions.add(compression);
+        }
     }
 
     /**
@@ -50,67 +89,354 @@ public class MessageHandler {
         return new JSONStringer().object().key("error").value(value).endObject().toString();
     }
 
+    /**
+     * Creates a timestamps document.
+     *
+     * @param serverUUID UUID of the server
+     * @param timestamp  Time the server last sent data
+     * @param pluginSet  Fingerprint of the server's plugin set, or 0 if not tracked
+     * @return DBObject
+     */
+    private DBObject createTimestamp(final UUID serverUUID, final long timestamp, final long pluginSet) {
+        final BasicDBObject dbo = new BasicDBObject("_id", MongoDB.uuidKey(serverUUID)).append("timestamp", timestamp);
+        if (pluginSet != 0L) dbo.append("plugin_set", pluginSet);
+        return dbo;
+    }
+
+    /**
+     * Fingerprints a sanitized report's plugin set, recording it in the report as <code>plugin_set</code>. If the
+     * plugins are unchanged from the known set, the list is dropped from the report, leaving only the fingerprint for
+     * the processors to resolve.
+     *
+     * @param r     Sanitized report
+     * @param known Fingerprint of the server's stored plugin set, or 0 if none is known
+     * @return Fingerprint, 0 if plugin sets are disabled, or -1 if the report is a delta against a set that is not the
+     * known one
+     */
+    private long getPluginSet(final Request r, final long known) {
+        final JSONObject root = r.getConfigRoot();
+        if (!root.has("plugins")) {
+            final long delta = root.getLong("plugin_set");
+            return this.pluginSets && known != 0L && delta == known ? delta : -1L;
+        }
+        if (!this.pluginSets) return 0L;
+        final long fingerprint = PluginSets.fingerprint(root.getJSONArray("plugins"));
+        root.put("plugin_set", fingerprint);
+        if (fingerprint == known) root.remove("plugins");
+        return fingerprint;
+    }
+
     private Status getStatus(final UUID serverUUID, final int version, final short waitTime) {
-        if (version != 1) return Status.BAD_VERSION;
+        if (version != MessageHandler.PROTOCOL_VERSION) return Status.BAD_VERSION;
         else if (waitTime > (short) 0) return Status.WAIT;
         else return Status.GO_AHEAD;
     }
 
-    private short getWaitTime(final UUID serverUUID) {
-        final DB db = this.rs.getMongoDB().getDB();
-        db.requestStart();
+    /**
+     * Computes the seconds left before a server may send again from its timestamps document.
+     *
+     * @param dbo Timestamps document, or null if the server has never sent
+     * @return Seconds to wait
+     */
+    private short computeWaitTime(final DBObject dbo) {
+        if (dbo == null) return (short) 0; // this client has never sent before
+        final Object timestampObject = dbo.get("timestamp");
+        if (!(timestampObject instanceof Number)) return (short) 60;
+        return (short) (((((Number) timestampObject).longValue() + 1800000L) - System.currentTimeMillis()) / (short) 1000);
+    }
+
+    /**
+     * Gets the seconds left before the given server may send again, noting the server's stored plugin set on the
+     * client. This does not pin a connection, so the lookup may be served by a secondary if the timestamps collection
+     * is configured with such a read preference.
+     *
+     * @param serverUUID UUID of the server
+     * @param client     Client reporting for the server
+     * @return Seconds to wait
+     */
+    private short getWaitTime(final UUID serverUUID, final Client client) {
         try {
-            db.requestEnsureConnection();
-            final DBCollection dbc = db.getCollection(this.timestampCollection);
-            final DBObject dbo = dbc.findOne(new BasicDBObject("uuid", serverUUID));
-            if (dbo == null) return (short) 0; // this client has never sent before
-            final Object timestampObject = dbo.get("timestamp");
-            if (!(timestampObject instanceof Number)) return (short) 60;
-            return (short) (((((Number) timestampObject).longValue() + 1800000L) - System.currentTimeMillis()) / (short) 1000);
+            final DBObject dbo = this.rs.getMongoDB().findTimestamp(serverUUID);
+            if (dbo != null && dbo.get("plugin_set") instanceof Number) client.setPluginSet(((Number) dbo.get("plugin_set")).longValue());
+            return this.computeWaitTime(dbo);
         } catch (final MongoException ex) {
             this.rs.getLogger().log(Level.SEVERE, ex.getMessage(), ex);
-        } finally {
-            db.requestDone();
         }
         return (short) 60; // if some error happened
     }
 
+    /**
+     * Gets the seconds left before each of the given servers may send again, in one query.
+     *
+     * @param serverUUIDs UUIDs of the servers
+     * @return Map of UUID to seconds to wait, or null if the lookup failed
+     */
+    private Map<UUID, Short> getWaitTimes(final Collection<UUID> serverUUIDs) {
+        final Map<UUID, Short> waitTimes = new HashMap<>();
+        if (serverUUIDs.isEmpty()) return waitTimes;
+        try {
+            for (final Map.Entry<UUID, DBObject> entry : this.rs.getMongoDB().findTimestamps(serverUUIDs).entrySet()) {
+                waitTimes.put(entry.getKey(), this.computeWaitTime(entry.getValue()));
+            }
+        } catch (final MongoException ex) {
+            this.rs.getLogger().log(Level.SEVERE, ex.getMessage(), ex);
+            return null;
+        }
+        for (final UUID uuid : serverUUIDs) {
+            if (!waitTimes.containsKey(uuid)) waitTimes.put(uuid, (short) 0);
+        }
+        return waitTimes;
+    }
+
+    /**
+     * Handles a batch frame from a client that introduced itself with the batch flag. The frame is a JSON object
+     * with a <code>reports</code> array of <code>{"uuid": ..., "report": {...}}</code> entries, sent prefixed with its
+     * length as an int of at most <code>config.batch.max_frame_bytes</code>.
+     * <p/>
+     * Each entry gets its own wait time check, accepted entries are timestamped and queued together, and the reply is
+     * an unsigned short entry count followed by a status byte and a wait time short per entry, in frame order.
+     *
+     * @param bb     Batch frame
+     * @param client Client sending the frame
+     * @return Status vector, or an error String if the frame is unusable
+     */
+    public Object handleBatch(final ByteBuf bb, final Client client) {
+        final String rejected = this.rs.getReportSchema().prescanBatch(bb, this.maxBatchEntries);
+        if (rejected != null) return this.createErrorResponse(rejected);
+        final JSONArray entries;
+        try {
+            entries = new JSONObject(bb.toString(this.utf8)).getJSONArray("reports");
+        } catch (final JSONException ex) {
+            return this.badContent;
+        }
+        if (entries.length() > this.maxBatchEntries) {
+            return this.createErrorResponse("Too many entries in batch; the limit is " + this.maxBatchEntries + ".");
+        }
+        final int size = entries.length();
+        final UUID[] uuids = new UUID[size];
+        final JSONObject[] reports = new JSONObject[size];
+        final Status[] statuses = new Status[size];
+        final short[] waitTimes = new short[size];
+        final Set<UUID> seen = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            final JSONObject entry = entries.optJSONObject(i);
+            try {
+                if (entry == null) throw new JSONException("Entry is not an object");
+                uuids[i] = UUID.fromString(entry.getString("uuid"));
+                reports[i] = entry.getJSONObject("report");
+                if (!seen.add(uuids[i])) {
+                    // only one report per server per frame
+                    statuses[i] = Status.WAIT;
+                    waitTimes[i] = (short) 1800;
+                }
+            } catch (final JSONException | IllegalArgumentException ex) {
+                statuses[i] = Status.BAD_CONTENT;
+            }
+        }
+        final Map<UUID, Short> known = this.getWaitTimes(seen);
+        final List<Integer> accepted = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (statuses[i] != null) continue;
+            if (known == null) {
+                statuses[i] = Status.ERROR;
+                waitTimes[i] = (short) 60;
+            } else if ((waitTimes[i] = known.get(uuids[i])) > (short) 0) {
+                statuses[i] = Status.WAIT;
+            } else accepted.add(i);
+        }
+        if (!accepted.isEmpty()) this.storeBatch(accepted, uuids, reports, statuses, client.getVersion());
+        final ByteBuf ret = Unpooled.buffer(2 + size * 3);
+        ret.writeShort(size);
+        for (int i = 0; i < size; i++) {
+            ret.writeByte(statuses[i].getStatusByte());
+            ret.writeShort(waitTimes[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Validates, timestamps and queues the accepted entries of a batch frame, filling in their statuses.
+     *
+     * @param accepted Indices of the entries that passed the wait time check
+     * @param uuids    Server UUIDs by entry
+     * @param reports  Unsanitized reports by entry
+     * @param statuses Statuses by entry, to be filled in for accepted entries
+     * @param version  Protocol version the client introduced itself with
+     */
+    private void storeBatch(final List<Integer> accepted, final UUID[] uuids, final JSONObject[] reports, final Status[] statuses, final int version) {
+        final long now = System.currentTimeMillis();
+        final Request[] sanitized = new Request[reports.length];
+        final List<Integer> valid = new ArrayList<>(accepted.size());
+        for (final int i : accepted) {
+            try {
+                sanitized[i] = new Request(reports[i]).sanitize(this.rs.getReportSchema()); // will throw exception if invalid
+                if (this.getPluginSet(sanitized[i], 0L) == -1L) throw new JSONException("Batch entries cannot be deltas.");
+                valid.add(i);
+            } catch (final JSONException ex) {
+                statuses[i] = Status.BAD_CONTENT;
+            }
+        }
+        if (valid.isEmpty()) return;
+        final AdaptiveSampler sampler = this.rs.getAdaptiveSampler();
+        final double[] rates = new double[reports.length];
+        for (final int i : valid) rates[i] = sampler == null ? 1D : sampler.sample(uuids[i]);
+        try {
+            final BulkWriteOperation bulk = this.rs.getMongoDB().getCollection("timestamps").initializeUnorderedBulkOperation();
+            for (final int i : valid) {
+                final long pluginSet = rates[i] == 0D ? 0L : this.getPluginSet(sanitized[i], 0L);
+                bulk.find(new BasicDBObject("_id", MongoDB.uuidKey(uuids[i]))).upsert().replaceOne(this.createTimestamp(uuids[i], now, pluginSet));
+            }
+            bulk.execute();
+        } catch (final MongoException ex) {
+            this.rs.getLogger().log(Level.SEVERE, ex.getMessage(), ex);
+            for (final int i : valid) statuses[i] = Status.ERROR;
+            return;
+        }
+        for (final Iterator<Integer> it = valid.iterator(); it.hasNext(); ) {
+            final int i = it.next();
+            if (rates[i] == 0D) {
+                statuses[i] = Status.GO_AHEAD; // left out of the sample, but the client still waits as usual
+                it.remove();
+            } else if (sampler != null) sanitized[i].getConfigRoot().put("sample_rate", rates[i]);
+        }
+        // group by route so each tube, priority and ttr is written in one pipelined round trip
+        final Map<String, ReportRouter.Route> routes = new HashMap<>();
+        final Map<String, List<Integer>> indexes = new HashMap<>();
+        final Map<String, List<byte[]>> payloads = new HashMap<>();
+        for (final int i : valid) {
+            try {
+                final Request r = sanitized[i];
+                final byte[] payload = new QueuedReport(uuids[i], now, r).toBytes();
+                final ReportRouter.Route route = this.rs.getReportRouter().route(r, payload.length, version);
+                final String key = route.getTube() + ":" + route.getPriority() + ":" + route.getTtr();
+                if (!routes.containsKey(key)) {
+                    routes.put(key, route);
+                    indexes.put(key, new ArrayList<Integer>());
+                    payloads.put(key, new ArrayList<byte[]>());
+                }
+                indexes.get(key).add(i);
+                payloads.get(key).add(payload);
+            } catch (final JSONException | IllegalArgumentException ex) {
+                statuses[i] = Status.BAD_CONTENT;
+            }
+        }
+        for (final Map.Entry<String, ReportRouter.Route> entry : routes.entrySet()) {
+            final ReportRouter.Route route = entry.getValue();
+            final List<Integer> group = indexes.get(entry.getKey());
+            final BeanstalkClient bsc = this.rs.getNewBeanstalkClient(route.getTube());
+            try {
+                final List<BeanstalkResult> results = bsc.putAll(route.getPriority(), 0, route.getTtr(), payloads.get(entry.getKey()));
+                for (int j = 0; j < group.size(); j++) {
+                    final BeanstalkResult result = results.get(j);
+                    if (!result.isSuccess()) this.rs.getLogger().log(Level.SEVERE, result.getError().getMessage(), result.getError());
+                    statuses[group.get(j)] = result.isSuccess() ? Status.GO_AHEAD : Status.ERROR;
+                }
+            } finally {
+                bsc.close();
+            }
+        }
+    }
+
     public String handleData(final ByteBuf bb, final Client client) {
         client.setStage(Stage.NO_DATA);
+        final String rejected = this.rs.getReportSchema().prescanReport(bb);
+        if (rejected != null) return this.createErrorResponse(rejected);
         final String message = bb.toString(this.utf8);
         try {
             final JSONObject jo = new JSONObject(message);
-            return this.storeData(jo, client.getServerUUID());
+            return this.storeData(jo, client);
         } catch (final JSONException ex) {
             return this.badContent;
         } catch (final Throwable t) {
             this.rs.getLogger().severe("An exception was thrown while handling a request:");
             this.rs.getLogger().log(Level.SEVERE, t.getMessage(), t);
-            t.printStackTrace();
         }
         return this.internalError;
     }
 
+    /**
+     * Picks the codec for a client's requested compression, falling back to none if it is unknown or disabled.
+     *
+     * @param requested Wire id requested by the client
+     * @return Accepted Compression
+     */
+    private Compression negotiateCompression(final byte requested) {
+        final Compression compression = Compression.fromId(requested);
+        return compression != null && this.compressions.contains(compression) ? compression : Compression.NONE;
+    }
+
+    /**
+     * Handles a client's introduction: the protocol version int, the server UUID, and an optional flags byte whose
+     * low nibble requests a payload {@link io.statik.report.Compression}, whose 0x10 bit asks to send batch frames and
+     * whose 0x20 bit asks for the server's plugin set fingerprint. If the flags byte is sent, the accepted codec is
+     * appended to the reply after the wait time, followed by the fingerprint as a long (0 if none) if it was asked for.
+     * A report may then send the fingerprint as hexadecimal <code>plugins_unchanged</code> instead of its plugins.
+     * Once a codec other than none is accepted, or batch frames are asked for, each payload is sent prefixed with its
+     * length as an int.
+     *
+     * @param bb     Introduction message
+     * @param client Client introducing itself
+     * @return Reply for the client
+     */
     public ByteBuf handleIntroduction(final ByteBuf bb, final Client client) {
         final int version = bb.getInt(0);
         final UUID uuid = new UUID(bb.getLong(1), bb.getLong(2));
+        final boolean hasFlags = bb.readableBytes() > 20;
+        final byte flags = hasFlags ? bb.getByte(20) : (byte) 0;
         if (client.getServerUUID() == null) client.setServerUUID(uuid);
+        client.setVersion(version);
+        client.setBatch((flags & MessageHandler.FLAG_BATCH) != 0);
         final byte[] badVersion = "Bad version".getBytes(Charset.forName("UTF-8"));
-        final boolean isBadVersion = version != 1; // TODO: not hardcode this?
+        final boolean isBadVersion = version != MessageHandler.PROTOCOL_VERSION;
         final ByteBuf ret = Unpooled.buffer(isBadVersion ? 3 : 3 + badVersion.length);
-        final short waitTime = this.getWaitTime(uuid);
+        final short waitTime = client.isBatch() ? (short) 0 : this.getWaitTime(uuid, client); // batch entries are checked individually
         final Status status = isBadVersion ? Status.BAD_VERSION : this.getStatus(uuid, version, waitTime);
         ret.writeByte(status.getStatusByte());
         ret.writeShort(waitTime);
         if (status == Status.BAD_VERSION) {
             ret.writeBytes(badVersion);
             client.setStage(Stage.NO_DATA);
-        } else if (status == Status.WAIT) {
+            return ret;
+        }
+        if (hasFlags) {
+            client.setCompression(this.negotiateCompression((byte) (flags & 0x0f)));
+            ret.writeByte(client.getCompression().getId());
+            if ((flags & MessageHandler.FLAG_DELTA) != 0) ret.writeLong(this.pluginSets ? client.getPluginSet() : 0L);
+        }
+        if (status == Status.WAIT) {
             client.setStage(Stage.NO_DATA);
         } else client.setStage(Stage.DATA);
         return ret;
     }
 
+    /**
+     * Handles a report sent as one datagram: the protocol version int and the server UUID, as in an introduction,
+     * followed by the report as uncompressed JSON. The report goes through the same wait time check, validation and
+     * queueing as one sent over a connection, and the reply is a status byte and a wait time short.
+     *
+     * @param bb     Datagram content
+     * @param client Client for the datagram's sender
+     * @return Reply for the sender
+     */
+    public ByteBuf handleDatagram(final ByteBuf bb, final Client client) {
+        final ByteBuf ret = Unpooled.buffer(3);
+        if (bb.readableBytes() <= 20) return ret.writeByte(Status.BAD_CONTENT.getStatusByte()).writeShort(0);
+        final int version = bb.readInt();
+        final UUID uuid = new UUID(bb.readLong(), bb.readLong());
+        if (version != MessageHandler.PROTOCOL_VERSION) return ret.writeByte(Status.BAD_VERSION.getStatusByte()).writeShort(0);
+        client.setServerUUID(uuid);
+        client.setVersion(version);
+        final short waitTime = this.getWaitTime(uuid, client);
+        if (waitTime > (short) 0) return ret.writeByte(Status.WAIT.getStatusByte()).writeShort(waitTime);
+        client.setStage(Stage.DATA);
+        final String result = this.handleData(bb, client);
+        final Status status;
+        if (result.equals(this.dataQueued)) status = Status.GO_AHEAD;
+        else if (result.equals(this.internalError)) status = Status.ERROR;
+        else status = Status.BAD_CONTENT;
+        return ret.writeByte(status.getStatusByte()).writeShort(0);
+    }
+
     /**
      * Handles the given message. If msg is a ByteBuf, it will be processed into a JSONObject and attempted to be
      * stored.
@@ -125,7 +451,7 @@ public class MessageHandler {
             case INTRODUCTION:
                 return this.handleIntroduction(bb, client);
             case DATA:
-                return this.handleData(bb, client);
+                return client.isBatch() ? this.handleBatch(bb, client) : this.handleData(bb, client);
             default:
                 return this.internalError;
         }
@@ -134,11 +460,24 @@ public class MessageHandler {
     /**
      * Checks if the report data exists and stores it.
      *
-     * @param jo Client's input
+     * @param jo     Client's input
+     * @param client Client the data is from
      * @return (JSON) String to be returned to client
      * @throws JSONException In case of any missing values
      */
-    public String storeData(final JSONObject jo, final UUID uuid) throws JSONException {
+    public String storeData(final JSONObject jo, final Client client) throws JSONException {
+        final UUID uuid = client.getServerUUID();
+        final TraceContext trace = client.getTrace();
+        if (trace != null) trace.mark("parsed");
+        final Request r;
+        try {
+            r = new Request(jo).sanitize(this.rs.getReportSchema()); // will throw exception if invalid
+        } catch (final JSONException ex) {
+            return this.badContent;
+        }
+        if (trace != null) trace.mark("validated");
+        final long pluginSet = this.getPluginSet(r, client.getPluginSet());
+        if (pluginSet == -1L) return this.pluginSetChanged;
         if (!this.rs.getConfiguration().pathExists("config.database.collections.data")) {
             this.rs.getLogger().warning("The data collection does not exist in the config.");
             return this.internalError;
@@ -147,25 +486,40 @@ public class MessageHandler {
             this.rs.getLogger().warning("The timestamps collection does not exist in the config.");
             return this.internalError;
         }
+        final AdaptiveSampler sampler = this.rs.getAdaptiveSampler();
+        final double rate = sampler == null ? 1D : sampler.sample(uuid);
         // Update (or insert if necessary) a timestamp tied to the server UUID, for reporting the time left to wait
-        // before the client should send again.
+        // before the client should send again. A plugin set is only recorded if its report will be stored.
         final DB db = this.rs.getMongoDB().getDB();
         db.requestStart();
         try {
             db.requestEnsureConnection();
-            final DBCollection dbc = db.getCollection(this.timestampCollection);
-            dbc.update(new BasicDBObject("uuid", uuid), new BasicDBObject("uuid", uuid).append("timestamp", System.currentTimeMillis()), true, false);
+            final DBCollection dbc = this.rs.getMongoDB().getCollection("timestamps");
+            dbc.update(new BasicDBObject("_id", MongoDB.uuidKey(uuid)), this.createTimestamp(uuid, System.currentTimeMillis(), rate == 0D ? 0L : pluginSet), true, false);
         } catch (final MongoException ex) {
             this.rs.getLogger().log(Level.SEVERE, ex.getMessage(), ex);
             return this.internalError;
         } finally {
             db.requestDone();
         }
+        if (trace != null) trace.mark("timestamped");
+        if (rate == 0D) return this.dataQueued; // left out of the sample, but the client still waits as usual
+        if (sampler != null) r.getConfigRoot().put("sample_rate", rate);
         try {
-            final Request r = new Request(jo).sanitize(); // will throw exception if invalid
-            final BeanstalkClient bsc = this.rs.getNewBeanstalkClient();
-            bsc.put(0L, 0, 5000, r.toString().getBytes(Charset.forName("UTF-8")));
-            bsc.close();
+            final QueuedReport qr = new QueuedReport(uuid, System.currentTimeMillis(), r, client.getRemoteAddress().getAddress().getHostAddress());
+            if (trace != null) {
+                trace.mark("enqueued");
+                qr.setTrace(trace);
+            }
+            final byte[] payload = qr.toBytes();
+            final ReportRouter.Route route = this.rs.getReportRouter().route(r, payload.length, client.getVersion());
+            final BeanstalkClient bsc = this.rs.getNewBeanstalkClient(route.getTube());
+            try {
+                bsc.put(route.getPriority(), 0, route.getTtr(), payload);
+            } finally {
+                bsc.close();
+            }
+            if (trace != null) trace.mark("queued");
         } catch (final JSONException ex) {
             return this.badContent;
         } catch (final IllegalArgumentException ex) {
@@ -175,15 +529,16 @@ public class MessageHandler {
             this.rs.getLogger().log(Level.SEVERE, ex.getMessage(), ex);
             return this.internalError;
         }
-        final JSONStringer js = new JSONStringer();
         // TODO: Not this. Meaningful responses (next acceptable timestamp for new data)
-        return js.object().key("result").value("Data queued for storage.").endObject().toString();
+        return this.dataQueued;
     }
 
     private enum Status {
         GO_AHEAD((byte) 0),
         BAD_VERSION((byte) 1),
-        WAIT((byte) 2);
+        WAIT((byte) 2),
+        BAD_CONTENT((byte) 3),
+        ERROR((byte) 4);
 
         private final byte statusByte;
 
@@ -1,40 +1,238 @@
 package io.statik.report;
 
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import org.bson.types.Binary;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 /**
  * Class to handle talking with MongoDB.
  */
 public class MongoDB {
 
+    /**
+     * BSON binary subtype for standard (big-endian) UUIDs.
+     */
+    private static final byte UUID_SUBTYPE = 4;
     private final ReportServer rs;
     private final MongoClient mc;
     private final String database;
+    private final Map<String, WriteConcern> writeConcerns = new HashMap<>();
+    private final Map<String, ReadPreference> readPreferences = new HashMap<>();
+    /**
+     * Whether timestamps in the legacy layout, keyed by an ObjectId with a separate <code>uuid</code> field, may still
+     * exist. Cleared by {@link SchemaBootstrap} once none are left.
+     */
+    private volatile boolean legacyTimestamps = true;
 
     /**
      * Creates a new instance of this class and connects to the configured database.
+     * <p/>
+     * If <code>config.database.seeds</code> is set, the client connects to those members as a replica set. Otherwise,
+     * the single server at <code>config.database.hostname</code> is used.
      *
      * @param rs ReportServer this is running from
      */
     public MongoDB(final ReportServer rs) {
         this.rs = rs;
         final Configuration c = this.rs.getConfiguration();
-        final ServerAddress sa;
+        if (!c.pathExists("config.database.database")) throw new IllegalArgumentException("Missing database");
+        this.database = c.getString("config.database.database", null);
+        final List<ServerAddress> seeds = this.getSeeds(c);
+        final List<MongoCredential> credentials = new ArrayList<>();
+        final String username = c.getString("config.database.auth.username", "");
+        if (c.getBoolean("config.database.auth.enabled", false) && !username.isEmpty()) {
+            credentials.add(MongoCredential.createMongoCRCredential(
+                username,
+                c.getString("config.database.auth.source", this.database),
+                c.getString("config.database.auth.password", "").toCharArray()
+            ));
+        }
+        final MongoClientOptions.Builder options = MongoClientOptions.builder()
+            .connectionsPerHost(c.getInt("config.database.pool.connections_per_host", 100))
+            .minConnectionsPerHost(c.getInt("config.database.pool.min_connections_per_host", 0))
+            .threadsAllowedToBlockForConnectionMultiplier(c.getInt("config.database.pool.threads_allowed_to_block_multiplier", 5))
+            .maxWaitTime(c.getInt("config.database.pool.max_wait_time", 120000))
+            .connectTimeout(c.getInt("config.database.pool.connect_timeout", 10000))
+            .socketTimeout(c.getInt("config.database.pool.socket_timeout", 0));
+        final String replicaSet = c.getString("config.database.replica_set", null);
+        if (replicaSet != null) options.requiredReplicaSetName(replicaSet);
+        this.mc = seeds.size() == 1 && replicaSet == null
+            ? new MongoClient(seeds.get(0), credentials, options.build())
+            : new MongoClient(seeds, credentials, options.build());
+        final JSONObject collections = c.getJSONObject("config.database.collections");
+        if (collections == null) return;
+        for (final Iterator<?> keys = collections.keys(); keys.hasNext(); ) {
+            final String key = (String) keys.next();
+            final String writeConcern = c.getString("config.database.write_concerns." + key, null);
+            if (writeConcern != null) this.writeConcerns.put(key, this.parseWriteConcern(writeConcern));
+            final String readPreference = c.getString("config.database.read_preferences." + key, null);
+            if (readPreference != null) this.readPreferences.put(key, this.parseReadPreference(readPreference));
+        }
+    }
+
+    /**
+     * Encodes a server UUID as the <code>_id</code> of its timestamp document.
+     *
+     * @param uuid Server UUID
+     * @return 16-byte binary UUID
+     */
+    public static Binary uuidKey(final UUID uuid) {
+        final ByteBuffer bb = ByteBuffer.allocate(16);
+        bb.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        return new Binary(MongoDB.UUID_SUBTYPE, bb.array());
+    }
+
+    /**
+     * Reads the server UUID of a timestamp document in either layout.
+     *
+     * @param dbo Timestamp document
+     * @return Server UUID, or null if the document has none
+     */
+    public static UUID getTimestampUUID(final DBObject dbo) {
+        final Object id = dbo.get("_id");
+        if (id instanceof Binary && ((Binary) id).getType() == MongoDB.UUID_SUBTYPE && ((Binary) id).length() == 16) {
+            final ByteBuffer bb = ByteBuffer.wrap(((Binary) id).getData());
+            return new UUID(bb.getLong(), bb.getLong());
+        }
+        final Object uuid = dbo.get("uuid");
+        return uuid instanceof UUID ? (UUID) uuid : null;
+    }
+
+    /**
+     * Finds the timestamp document of a server, falling back to the legacy layout while it may still exist.
+     *
+     * @param uuid Server UUID
+     * @return Timestamp document, or null if there is none
+     */
+    public DBObject findTimestamp(final UUID uuid) {
+        final DBCollection dbc = this.getCollection("timestamps");
+        final DBObject dbo = dbc.findOne(new BasicDBObject("_id", MongoDB.uuidKey(uuid)));
+        if (dbo != null || !this.legacyTimestamps) return dbo;
+        return dbc.findOne(new BasicDBObject("uuid", uuid));
+    }
+
+    /**
+     * Finds the timestamp documents of several servers, falling back to the legacy layout while it may still exist.
+     *
+     * @param uuids Server UUIDs
+     * @return Map of UUID to timestamp document, without servers that have none
+     */
+    public Map<UUID, DBObject> findTimestamps(final Collection<UUID> uuids) {
+        final Map<UUID, DBObject> found = new HashMap<>();
+        if (uuids.isEmpty()) return found;
+        final DBCollection dbc = this.getCollection("timestamps");
+        final BasicDBList keys = new BasicDBList();
+        for (final UUID uuid : uuids) keys.add(MongoDB.uuidKey(uuid));
+        for (final DBObject dbo : dbc.find(new BasicDBObject("_id", new BasicDBObject("$in", keys)))) {
+            final UUID uuid = MongoDB.getTimestampUUID(dbo);
+            if (uuid != null) found.put(uuid, dbo);
+        }
+        if (!this.legacyTimestamps || found.size() == uuids.size()) return found;
+        final BasicDBList missing = new BasicDBList();
+        for (final UUID uuid : uuids) {
+            if (!found.containsKey(uuid)) missing.add(uuid);
+        }
+        for (final DBObject dbo : dbc.find(new BasicDBObject("uuid", new BasicDBObject("$in", missing)))) {
+            final UUID uuid = MongoDB.getTimestampUUID(dbo);
+            if (uuid != null) found.put(uuid, dbo);
+        }
+        return found;
+    }
+
+    /**
+     * Checks whether timestamps in the legacy layout may still exist.
+     *
+     * @return true until the migration has finished
+     */
+    public boolean hasLegacyTimestamps() {
+        return this.legacyTimestamps;
+    }
+
+    void setLegacyTimestamps(final boolean legacyTimestamps) {
+        this.legacyTimestamps = legacyTimestamps;
+    }
+
+    /**
+     * Reads the seed list from the configuration, falling back to the single configured server.
+     *
+     * @param c Configuration to read from
+     * @return List of addresses (never empty)
+     */
+    private List<ServerAddress> getSeeds(final Configuration c) {
+        final List<ServerAddress> seeds = new ArrayList<>();
         try {
-            sa = new ServerAddress(
-                c.getString("config.database.hostname", "localhost"),
-                c.getInt("config.database.port", 27017)
-            );
+            final JSONArray seedArray = c.getJSONArray("config.database.seeds");
+            if (seedArray != null) {
+                for (int i = 0; i < seedArray.length(); i++) {
+                    final JSONObject seed = seedArray.optJSONObject(i);
+                    if (seed == null) continue;
+                    seeds.add(new ServerAddress(seed.optString("hostname", "localhost"), seed.optInt("port", 27017)));
+                }
+            }
+            if (seeds.isEmpty()) {
+                seeds.add(new ServerAddress(
+                    c.getString("config.database.hostname", "localhost"),
+                    c.getInt("config.database.port", 27017)
+                ));
+            }
         } catch (final UnknownHostException ex) {
             throw new IllegalArgumentException("Invalid configuration for database", ex);
         }
-        this.mc = new MongoClient(sa);
-        if (!c.pathExists("config.database.database")) throw new IllegalArgumentException("Missing database");
-        this.database = c.getString("config.database.database", null);
+        return Collections.unmodifiableList(seeds);
+    }
+
+    private ReadPreference parseReadPreference(final String name) {
+        try {
+            return ReadPreference.valueOf(name);
+        } catch (final IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid read preference: " + name, ex);
+        }
+    }
+
+    private WriteConcern parseWriteConcern(final String name) {
+        final WriteConcern wc = WriteConcern.valueOf(name.toUpperCase());
+        if (wc == null) throw new IllegalArgumentException("Invalid write concern: " + name);
+        return wc;
+    }
+
+    /**
+     * Gets a configured collection by its key under <code>config.database.collections</code>, with the write concern
+     * and read preference configured for that key applied.
+     *
+     * @param key Collection key, such as <code>data</code> or <code>timestamps</code>
+     * @return DBCollection, or null if the key is not configured
+     */
+    public DBCollection getCollection(final String key) {
+        final String name = this.rs.getConfiguration().getString("config.database.collections." + key, null);
+        if (name == null) return null;
+        final DBCollection dbc = this.getDB().getCollection(name);
+        final WriteConcern wc = this.writeConcerns.get(key);
+        if (wc != null) dbc.setWriteConcern(wc);
+        final ReadPreference rp = this.readPreferences.get(key);
+        if (rp != null) dbc.setReadPreference(rp);
+        return dbc;
     }
 
     /**
@@ -0,0 +1,139 @@
+package io.statik.report;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.Snappy;
+import io.netty.util.ReferenceCountUtil;
+import org.json.JSONStringer;
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Pipeline stage that decompresses data messages once a codec has been negotiated during the introduction.
+ * <p/>
+ * Until {@link #setCompression(Compression)} is called, messages pass through untouched. Each message must hold a
+ * whole compressed payload, so the {@link io.statik.report.ReportHandler} puts a length-prefixed frame decoder in
+ * front of this once a codec is negotiated. Decompressed output is bounded by
+ * <code>config.compression.max_decompressed_size</code> so a small payload cannot inflate without limit.
+ */
+public class PayloadDecompressor extends ChannelInboundHandlerAdapter {
+
+    private final int maxDecompressedSize;
+    private Compression compression = Compression.NONE;
+    private Inflater inflater;
+    private Snappy snappy;
+
+    /**
+     * Creates a new PayloadDecompressor.
+     *
+     * @param rs ReportServer this is running from
+     */
+    public PayloadDecompressor(final ReportServer rs) {
+        this.maxDecompressedSize = rs.getConfiguration().getInt("config.compression.max_decompressed_size", 1048576);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        if (this.inflater != null) this.inflater.end();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        if (this.compression == Compression.NONE || !(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        final ByteBuf in = (ByteBuf) msg;
+        final ByteBuf out;
+        try {
+            out = this.compression == Compression.DEFLATE ? this.inflate(ctx, in) : this.unsnappy(ctx, in);
+        } catch (final DecompressionException ex) {
+            final String error = new JSONStringer().object().key("error").value(ex.getMessage()).endObject().toString();
+            ctx.writeAndFlush(ByteBufUtil.encodeString(ctx.alloc(), CharBuffer.wrap(error), Charset.forName("UTF-8")))
+                .addListener(ChannelFutureListener.CLOSE);
+            return;
+        } finally {
+            ReferenceCountUtil.release(in);
+        }
+        ctx.fireChannelRead(out);
+    }
+
+    private ByteBuf inflate(final ChannelHandlerContext ctx, final ByteBuf in) {
+        if (this.inflater == null) this.inflater = new Inflater();
+        this.inflater.reset();
+        final byte[] input = new byte[in.readableBytes()];
+        in.readBytes(input);
+        this.inflater.setInput(input);
+        final ByteBuf out = ctx.alloc().heapBuffer(Math.min(this.maxDecompressedSize, input.length * 4));
+        final byte[] chunk = new byte[8192];
+        try {
+            while (!this.inflater.finished()) {
+                final int read = this.inflater.inflate(chunk);
+                if (read == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+                    throw new DecompressionException("Truncated deflate payload.");
+                }
+                if (out.readableBytes() + read > this.maxDecompressedSize) {
+                    throw new DecompressionException("Decompressed payload is too large.");
+                }
+                out.writeBytes(chunk, 0, read);
+            }
+            return out;
+        } catch (final DataFormatException ex) {
+            out.release();
+            throw new DecompressionException("Invalid deflate payload.");
+        } catch (final DecompressionException ex) {
+            out.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the uncompressed length preamble of a raw Snappy block without consuming it.
+     *
+     * @param in Compressed input
+     * @return Uncompressed length
+     */
+    private int peekSnappyLength(final ByteBuf in) {
+        int length = 0;
+        for (int i = 0; i < 5 && in.readerIndex() + i < in.writerIndex(); i++) {
+            final int b = in.getUnsignedByte(in.readerIndex() + i);
+            length |= (b & 0x7f) << (7 * i);
+            if ((b & 0x80) == 0) return length;
+        }
+        throw new DecompressionException("Invalid snappy preamble.");
+    }
+
+    private ByteBuf unsnappy(final ChannelHandlerContext ctx, final ByteBuf in) {
+        final int length = this.peekSnappyLength(in);
+        if (length < 0 || length > this.maxDecompressedSize) {
+            throw new DecompressionException("Decompressed payload is too large.");
+        }
+        if (this.snappy == null) this.snappy = new Snappy();
+        this.snappy.reset();
+        final ByteBuf out = ctx.alloc().heapBuffer(length, length);
+        try {
+            this.snappy.decode(in, out);
+            return out;
+        } catch (final RuntimeException ex) {
+            out.release();
+            throw ex instanceof DecompressionException ? (DecompressionException) ex : new DecompressionException("Invalid snappy payload.");
+        }
+    }
+
+    /**
+     * Sets the codec to decompress subsequent messages with.
+     *
+     * @param compression Negotiated codec
+     */
+    public void setCompression(final Compression compression) {
+        this.compression = compression;
+    }
+}
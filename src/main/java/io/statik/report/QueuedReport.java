@@ -0,0 +1,128 @@
+package io.statik.report;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Envelope for a sanitized report while it sits in beanstalkd, carrying what the processors need to know about the
+ * report besides its content.
+ * <p/>
+ * Jobs queued before this envelope existed hold only the report; those are read back with a null server UUID.
+ */
+public class QueuedReport {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final UUID serverUUID;
+    private final long received;
+    private final Request report;
+    private final String address;
+    private TraceContext trace = null;
+
+    /**
+     * Creates a new QueuedReport.
+     *
+     * @param serverUUID UUID of the server the report is from, or null if unknown
+     * @param received   Time the report was received, in milliseconds
+     * @param report     Sanitized report
+     */
+    public QueuedReport(final UUID serverUUID, final long received, final Request report) {
+        this(serverUUID, received, report, null);
+    }
+
+    /**
+     * Creates a new QueuedReport.
+     *
+     * @param serverUUID UUID of the server the report is from, or null if unknown
+     * @param received   Time the report was received, in milliseconds
+     * @param report     Sanitized report
+     * @param address    Remote address the report was sent from, or null if unknown
+     */
+    public QueuedReport(final UUID serverUUID, final long received, final Request report, final String address) {
+        this.serverUUID = serverUUID;
+        this.received = received;
+        this.report = report;
+        this.address = address;
+    }
+
+    /**
+     * Reads a QueuedReport from a job's data.
+     *
+     * @param data Job data
+     * @return QueuedReport
+     * @throws JSONException If the data is not a valid envelope or report
+     */
+    public static QueuedReport fromBytes(final byte[] data) throws JSONException {
+        final JSONObject jo = new JSONObject(new String(data, QueuedReport.UTF8));
+        if (!jo.has("report")) return new QueuedReport(null, 0L, new Request(jo));
+        final String uuid = jo.optString("uuid", null);
+        try {
+            final QueuedReport qr = new QueuedReport(
+                uuid == null ? null : UUID.fromString(uuid),
+                jo.optLong("received", 0L),
+                new Request(jo.getJSONObject("report")),
+                jo.optString("address", null)
+            );
+            if (jo.has("trace")) qr.setTrace(TraceContext.fromJSON(jo.getJSONObject("trace")));
+            return qr;
+        } catch (final IllegalArgumentException ex) {
+            throw new JSONException(ex);
+        }
+    }
+
+    /**
+     * Gets the remote address the report was sent from.
+     *
+     * @return Address, or null if unknown
+     */
+    public String getAddress() {
+        return this.address;
+    }
+
+    public long getReceived() {
+        return this.received;
+    }
+
+    public Request getReport() {
+        return this.report;
+    }
+
+    /**
+     * Gets the trace context of this report.
+     *
+     * @return TraceContext, or null if the report is not traced
+     */
+    public TraceContext getTrace() {
+        return this.trace;
+    }
+
+    public void setTrace(final TraceContext trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Gets the UUID of the server this report is from.
+     *
+     * @return UUID, or null if the job predates the envelope
+     */
+    public UUID getServerUUID() {
+        return this.serverUUID;
+    }
+
+    /**
+     * Serializes this QueuedReport for putting into beanstalkd.
+     *
+     * @return Job data
+     */
+    public byte[] toBytes() {
+        final JSONObject jo = new JSONObject()
+            .put("received", this.received)
+            .put("report", this.report.getConfigRoot());
+        if (this.serverUUID != null) jo.put("uuid", this.serverUUID.toString());
+        if (this.address != null) jo.put("address", this.address);
+        if (this.trace != null) jo.put("trace", this.trace.toJSON());
+        return jo.toString().getBytes(QueuedReport.UTF8);
+    }
+}
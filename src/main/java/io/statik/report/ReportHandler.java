@@ -5,6 +5,8 @@ import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.util.ReferenceCountUtil;
 
 import java.net.InetSocketAddress;
@@ -20,6 +22,8 @@ public class ReportHandler extends ChannelInboundHandlerAdapter {
 
     private final ReportServer rs;
     private final MessageHandler mh;
+    private final int maxCompressedFrameBytes;
+    private final int maxBatchFrameBytes;
 
     /**
      * Creates a new ReportHandler and initializes its {@link io.statik.report.MessageHandler}.
@@ -29,6 +33,22 @@ public class ReportHandler extends ChannelInboundHandlerAdapter {
     public ReportHandler(final ReportServer rs) {
         this.rs = rs;
         this.mh = new MessageHandler(rs);
+        this.maxCompressedFrameBytes = rs.getConfiguration().getInt("config.compression.max_decompressed_size", 1048576);
+        this.maxBatchFrameBytes = rs.getConfiguration().getInt("config.batch.max_frame_bytes", 16777216);
+    }
+
+    /**
+     * Puts a length-prefixed frame decoder in front of the {@link io.statik.report.PayloadDecompressor}, so every
+     * message after the introduction is a whole frame however TCP or TLS split it. Each frame is an int length
+     * followed by that many bytes.
+     *
+     * @param ctx           Context of this handler
+     * @param maxFrameBytes Largest frame accepted; a larger one closes the connection
+     */
+    private void addFrameDecoder(final ChannelHandlerContext ctx, final int maxFrameBytes) {
+        final ChannelPipeline pipeline = ctx.pipeline();
+        if (pipeline.get(LengthFieldBasedFrameDecoder.class) != null) return;
+        pipeline.addBefore(pipeline.context(PayloadDecompressor.class).name(), "frameDecoder", new LengthFieldBasedFrameDecoder(maxFrameBytes, 0, 4, 0, 4));
     }
 
     private ByteBuf encodeString(final ByteBufAllocator bba, final String string) {
@@ -49,8 +69,22 @@ public class ReportHandler extends ChannelInboundHandlerAdapter {
             ctx.writeAndFlush(this.encodeString(ctx.alloc(), "No data should be sent."));
             return;
         }
+        final BackpressureController bc = this.rs.getBackpressureController();
+        final long start = System.nanoTime();
+        bc.begin();
+        final Tracer tracer = this.rs.getTracer();
+        c.setTrace(tracer != null && c.getStage() == Stage.DATA && !c.isBatch() ? tracer.sample() : null);
         try {
             final Object write = this.mh.handleMessage(msg, c);
+            if (c.getStage() == Stage.DATA && c.getCompression() != Compression.NONE) {
+                final PayloadDecompressor pd = ctx.pipeline().get(PayloadDecompressor.class);
+                if (pd != null) {
+                    pd.setCompression(c.getCompression());
+                    this.addFrameDecoder(ctx, c.isBatch() ? this.maxBatchFrameBytes : this.maxCompressedFrameBytes); // compressed payloads cannot be split
+                }
+            } else if (c.getStage() == Stage.DATA && c.isBatch()) {
+                this.addFrameDecoder(ctx, this.maxBatchFrameBytes); // nor can batch frames, which span many reads
+            }
             final ByteBuf bb;
             if (write instanceof String) {
                 bb = this.encodeString(ctx.alloc(), (String) write);
@@ -58,11 +92,17 @@ public class ReportHandler extends ChannelInboundHandlerAdapter {
                 bb = (ByteBuf) write;
             } else return;
             ctx.writeAndFlush(bb);
+            final TraceContext trace = c.getTrace();
+            if (trace != null) {
+                trace.mark("replied");
+                tracer.export(trace, "ingest");
+            }
         } catch (final Throwable t) {
             this.rs.getLogger().warning("An exception occurred while reading a request:");
             this.rs.getLogger().log(Level.WARNING, t.getMessage(), t);
-            t.printStackTrace();
         } finally {
+            c.setTrace(null);
+            bc.end(start);
             ReferenceCountUtil.release(msg);
         }
     }
@@ -0,0 +1,166 @@
+package io.statik.report;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class to choose the beanstalkd tube, priority and time-to-run for a sanitized report.
+ * <p/>
+ * Rules are read from <code>config.beanstalkd.routes</code> and checked in order; the first matching rule wins. If no
+ * rule matches, the report goes into the first configured tube with priority 0.
+ */
+public class ReportRouter {
+
+    private final List<Tube> tubes = new ArrayList<>();
+    private final List<Rule> rules = new ArrayList<>();
+    private final Route defaultRoute;
+
+    /**
+     * Creates a new ReportRouter from the server's configuration.
+     *
+     * @param c Configuration to read tubes and routes from
+     */
+    public ReportRouter(final Configuration c) {
+        final JSONArray tubeArray = c.getJSONArray("config.beanstalkd.tubes");
+        if (tubeArray != null) {
+            for (int i = 0; i < tubeArray.length(); i++) {
+                final JSONObject jo = tubeArray.optJSONObject(i);
+                if (jo == null || !jo.has("name")) continue;
+                this.tubes.add(new Tube(jo.getString("name"), Math.max(1, jo.optInt("weight", 1))));
+            }
+        }
+        if (this.tubes.isEmpty()) this.tubes.add(new Tube("processing", 1));
+        this.defaultRoute = new Route(this.tubes.get(0).getName(), 0L, 5000);
+        final JSONArray routeArray = c.getJSONArray("config.beanstalkd.routes");
+        if (routeArray == null) return;
+        for (int i = 0; i < routeArray.length(); i++) {
+            final JSONObject jo = routeArray.optJSONObject(i);
+            if (jo == null) continue;
+            final String tube = jo.optString("tube", this.defaultRoute.getTube());
+            if (!this.hasTube(tube)) {
+                throw new IllegalArgumentException("Route " + i + " uses an unconfigured tube: " + tube);
+            }
+            this.rules.add(new Rule(
+                jo.optInt("min_size", 0),
+                jo.optInt("max_size", Integer.MAX_VALUE),
+                jo.optInt("version", -1),
+                jo.optString("mod", null),
+                new Route(tube, jo.optLong("priority", 0L), jo.optInt("ttr", 5000))
+            ));
+        }
+    }
+
+    private boolean hasTube(final String name) {
+        for (final Tube tube : this.tubes) {
+            if (tube.getName().equals(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the tubes that processors should watch, in configuration order.
+     *
+     * @return Unmodifiable list of tubes (never empty)
+     */
+    public List<Tube> getTubes() {
+        return Collections.unmodifiableList(this.tubes);
+    }
+
+    /**
+     * Picks the route for a sanitized report.
+     *
+     * @param r           Sanitized request
+     * @param payloadSize Size of the queued payload in bytes
+     * @param version     Protocol version the client introduced itself with
+     * @return Route (never null)
+     */
+    public Route route(final Request r, final int payloadSize, final int version) {
+        if (this.rules.isEmpty()) return this.defaultRoute;
+        final String mod = r.getString("minecraft.mod.name", null);
+        for (final Rule rule : this.rules) {
+            if (rule.matches(payloadSize, version, mod)) return rule.getRoute();
+        }
+        return this.defaultRoute;
+    }
+
+    /**
+     * A destination for a queued report.
+     */
+    public static class Route {
+
+        private final String tube;
+        private final long priority;
+        private final int ttr;
+
+        public Route(final String tube, final long priority, final int ttr) {
+            this.tube = tube;
+            this.priority = priority;
+            this.ttr = ttr;
+        }
+
+        public long getPriority() {
+            return this.priority;
+        }
+
+        public String getTube() {
+            return this.tube;
+        }
+
+        public int getTtr() {
+            return this.ttr;
+        }
+    }
+
+    /**
+     * A tube processors drain, along with its share of reserves.
+     */
+    public static class Tube {
+
+        private final String name;
+        private final int weight;
+
+        public Tube(final String name, final int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public int getWeight() {
+            return this.weight;
+        }
+    }
+
+    private static class Rule {
+
+        private final int minSize;
+        private final int maxSize;
+        private final int version;
+        private final String mod;
+        private final Route route;
+
+        private Rule(final int minSize, final int maxSize, final int version, final String mod, final Route route) {
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.version = version;
+            this.mod = mod;
+            this.route = route;
+        }
+
+        private Route getRoute() {
+            return this.route;
+        }
+
+        private boolean matches(final int payloadSize, final int version, final String mod) {
+            if (payloadSize < this.minSize || payloadSize > this.maxSize) return false;
+            if (this.version != -1 && this.version != version) return false;
+            return this.mod == null || this.mod.equalsIgnoreCase(mod);
+        }
+    }
+}
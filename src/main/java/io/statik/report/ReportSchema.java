@@ -0,0 +1,329 @@
+package io.statik.report;
+
+import io.netty.buffer.ByteBuf;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Class to validate reports against the report schema, with hard limits on how much a single report may contain.
+ * <p/>
+ * The schema is declared once in {@link #FIELDS} and compiled at construction into pre-split paths, so validating a
+ * report does no path parsing. Limits are read from <code>config.schema</code>. Raw frames can be prescanned in one
+ * pass over their bytes before they are parsed, so oversized or deeply nested input is rejected without building a
+ * JSON tree for it.
+ */
+public class ReportSchema {
+
+    /**
+     * The fixed fields of a report, as path and type pairs. Plugins are validated separately.
+     */
+    private static final String[][] FIELDS = {
+        {"system.java", "string"},
+        {"system.cores", "int"},
+        {"system.memory", "long"},
+        {"system.os.name", "string"},
+        {"system.os.version", "string"},
+        {"system.os.arch", "string"},
+        {"minecraft.version", "string"},
+        {"minecraft.players", "int"},
+        {"minecraft.online_mode", "boolean"},
+        {"minecraft.mod.name", "string"},
+        {"minecraft.mod.version", "string"}
+    };
+    /**
+     * Objects and arrays in a report outside of the plugin list: the root, system, system.os, minecraft,
+     * minecraft.mod and plugins.
+     */
+    private static final int FIXED_CONTAINERS = 6;
+    /**
+     * Nesting depth of a plugin data entry: root, plugins, plugin, data, entry.
+     */
+    private static final int REPORT_DEPTH = 5;
+    /**
+     * Types plugin data values may be configured to allow. Nested values are never allowed, which keeps the depth of
+     * a report fixed.
+     */
+    private static final Set<Type> SCALARS = EnumSet.of(Type.STRING, Type.NUMBER, Type.BOOLEAN, Type.NULL);
+    private final List<Field> fields = new ArrayList<>();
+    private final Set<Type> dataValueTypes = EnumSet.noneOf(Type.class);
+    private final int maxReportBytes;
+    private final int maxPlugins;
+    private final int maxDataEntries;
+    private final int maxStringLength;
+
+    /**
+     * Compiles the schema with the limits in the given Configuration.
+     *
+     * @param c Configuration to read limits from
+     */
+    public ReportSchema(final Configuration c) {
+        this.maxReportBytes = c.getInt("config.schema.max_report_bytes", 262144);
+        this.maxPlugins = c.getInt("config.schema.max_plugins", 256);
+        this.maxDataEntries = c.getInt("config.schema.max_data_entries", 64);
+        this.maxStringLength = c.getInt("config.schema.max_string_length", 256);
+        for (final String[] field : ReportSchema.FIELDS) {
+            this.fields.add(new Field(field[0].split("\\."), Type.fromName(field[1])));
+        }
+        final JSONArray types = c.getJSONArray("config.schema.data_value_types");
+        if (types == null) {
+            this.dataValueTypes.addAll(ReportSchema.SCALARS);
+            return;
+        }
+        for (int i = 0; i < types.length(); i++) {
+            final Type type = Type.fromName(types.optString(i));
+            if (type == null || !ReportSchema.SCALARS.contains(type)) {
+                throw new IllegalArgumentException("Invalid data value type: " + types.optString(i));
+            }
+            this.dataValueTypes.add(type);
+        }
+    }
+
+    private static JSONObject child(final JSONObject parent, final String key) {
+        JSONObject child = parent.optJSONObject(key);
+        if (child == null) parent.put(key, child = new JSONObject());
+        return child;
+    }
+
+    /**
+     * Gets the largest number of objects and arrays a valid report may contain.
+     *
+     * @return Container limit
+     */
+    private int getMaxContainers() {
+        return ReportSchema.FIXED_CONTAINERS + this.maxPlugins * (2 + this.maxDataEntries);
+    }
+
+    public int getMaxReportBytes() {
+        return this.maxReportBytes;
+    }
+
+    /**
+     * Checks a raw batch frame against the limits of the reports it may hold, without parsing it.
+     *
+     * @param bb         Batch frame; its reader index is not moved
+     * @param maxEntries Most entries a batch frame may hold
+     * @return Reason the frame was rejected, or null if it may be parsed
+     */
+    public String prescanBatch(final ByteBuf bb, final int maxEntries) {
+        // root, reports array and an entry object around each report
+        final long maxBytes = (long) this.maxReportBytes * maxEntries;
+        final long maxContainers = 2L + (long) (1 + this.getMaxContainers()) * maxEntries;
+        return this.prescan(bb, maxBytes, ReportSchema.REPORT_DEPTH + 3, maxContainers);
+    }
+
+    /**
+     * Checks a raw report against the schema's limits, without parsing it.
+     *
+     * @param bb Report; its reader index is not moved
+     * @return Reason the report was rejected, or null if it may be parsed
+     */
+    public String prescanReport(final ByteBuf bb) {
+        return this.prescan(bb, this.maxReportBytes, ReportSchema.REPORT_DEPTH, this.getMaxContainers());
+    }
+
+    /**
+     * Makes one pass over raw JSON, tracking only nesting, container count and string lengths.
+     * <p/>
+     * String lengths are counted in raw bytes, which may be up to six per character once escaped, so the byte bound
+     * used here is loose and the exact check is left to {@link #validate(org.json.JSONObject)}.
+     *
+     * @param bb            Raw JSON
+     * @param maxBytes      Size limit
+     * @param maxDepth      Nesting limit
+     * @param maxContainers Limit on the number of objects and arrays
+     * @return Reason the input was rejected, or null if it may be parsed
+     */
+    private String prescan(final ByteBuf bb, final long maxBytes, final int maxDepth, final long maxContainers) {
+        if (bb.readableBytes() > maxBytes) return "Content is too large; the limit is " + maxBytes + " bytes.";
+        final int maxStringBytes = this.maxStringLength * 6 + 2;
+        int depth = 0;
+        long containers = 0L;
+        boolean inString = false;
+        boolean escaped = false;
+        int stringBytes = 0;
+        for (int i = bb.readerIndex(), end = bb.writerIndex(); i < end; i++) {
+            final byte b = bb.getByte(i);
+            if (inString) {
+                if (++stringBytes > maxStringBytes) return "A string is too long; the limit is " + this.maxStringLength + ".";
+                if (escaped) escaped = false;
+                else if (b == '\\') escaped = true;
+                else if (b == '"') inString = false;
+                continue;
+            }
+            switch (b) {
+                case '"':
+                    inString = true;
+                    stringBytes = 0;
+                    break;
+                case '{':
+                case '[':
+                    if (++depth > maxDepth) return "Content is nested too deeply.";
+                    if (++containers > maxContainers) return "Content has too many entries.";
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return null;
+    }
+
+    private String checkString(final String name, final String value) throws JSONException {
+        if (value.length() > this.maxStringLength) {
+            throw new JSONException(name + " is too long; the limit is " + this.maxStringLength + ".");
+        }
+        return value;
+    }
+
+    /**
+     * Creates a sanitized Request holding only the schema's fields.
+     * <p/>
+     * A report may replace its plugin list with <code>plugins_unchanged</code>, the hexadecimal fingerprint of a plugin
+     * set; the sanitized Request then holds the fingerprint as <code>plugin_set</code> and no plugin list.
+     *
+     * @param report Unsanitized report
+     * @return New, sanitized Request
+     * @throws org.json.JSONException If any field is missing, of the wrong type or over a limit
+     */
+    public Request validate(final JSONObject report) throws JSONException {
+        final JSONObject sanitized = new JSONObject();
+        for (final Field field : this.fields) {
+            JSONObject from = report;
+            JSONObject to = sanitized;
+            final String[] path = field.path;
+            for (int i = 0; i < path.length - 1; i++) {
+                from = from.getJSONObject(path[i]);
+                to = ReportSchema.child(to, path[i]);
+            }
+            final String key = path[path.length - 1];
+            switch (field.type) {
+                case STRING:
+                    to.put(key, this.checkString(key, from.getString(key)));
+                    break;
+                case INT:
+                    to.put(key, from.getInt(key));
+                    break;
+                case LONG:
+                    to.put(key, from.getLong(key));
+                    break;
+                case BOOLEAN:
+                    to.put(key, from.getBoolean(key));
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported field type: " + field.type);
+            }
+        }
+        if (report.has("plugins_unchanged")) {
+            // a delta report, whose plugins are those of a plugin set the client was told about
+            try {
+                sanitized.put("plugin_set", new BigInteger(report.getString("plugins_unchanged"), 16).longValue());
+            } catch (final NumberFormatException ex) {
+                throw new JSONException("plugins_unchanged is not a hexadecimal fingerprint.");
+            }
+        } else sanitized.put("plugins", this.validatePlugins(report.getJSONArray("plugins")));
+        return new Request(sanitized);
+    }
+
+    private JSONArray validateData(final JSONArray data) throws JSONException {
+        if (data.length() > this.maxDataEntries) {
+            throw new JSONException("Too many data entries; the limit is " + this.maxDataEntries + ".");
+        }
+        final JSONArray sanitized = new JSONArray();
+        for (int i = 0; i < data.length(); i++) {
+            final JSONObject entry = data.optJSONObject(i);
+            if (entry == null) continue;
+            final Object value = entry.get("value");
+            final Type type = Type.of(value);
+            if (!this.dataValueTypes.contains(type)) {
+                throw new JSONException("Data values may not be of type " + type.name().toLowerCase(Locale.ENGLISH) + ".");
+            }
+            if (type == Type.STRING) this.checkString("value", (String) value);
+            sanitized.put(new JSONObject()
+                    .put("name", this.checkString("name", entry.getString("name")))
+                    .put("value", value)
+            );
+        }
+        return sanitized;
+    }
+
+    private JSONArray validatePlugins(final JSONArray plugins) throws JSONException {
+        if (plugins.length() > this.maxPlugins) {
+            throw new JSONException("Too many plugins; the limit is " + this.maxPlugins + ".");
+        }
+        final JSONArray sanitized = new JSONArray();
+        for (int i = 0; i < plugins.length(); i++) {
+            final JSONObject jo = plugins.optJSONObject(i);
+            if (jo == null) continue;
+            final JSONObject plugin = new JSONObject()
+                .put("name", this.checkString("name", jo.getString("name")))
+                .put("version", this.checkString("version", jo.getString("version")));
+            if (jo.has("data")) plugin.put("data", this.validateData(jo.getJSONArray("data")));
+            sanitized.put(plugin);
+        }
+        return sanitized;
+    }
+
+    /**
+     * Value types a schema field or plugin data value may have.
+     */
+    public enum Type {
+        STRING,
+        INT,
+        LONG,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        OBJECT,
+        ARRAY;
+
+        /**
+         * Gets a Type by its configuration name, such as <code>string</code>.
+         *
+         * @param name Name of the type
+         * @return Type, or null if there is none by that name
+         */
+        public static Type fromName(final String name) {
+            for (final Type type : Type.values()) {
+                if (type.name().equalsIgnoreCase(name)) return type;
+            }
+            return null;
+        }
+
+        /**
+         * Gets the Type of a parsed JSON value.
+         *
+         * @param value Value from a JSONObject
+         * @return Type
+         */
+        public static Type of(final Object value) {
+            if (value instanceof String) return STRING;
+            if (value instanceof Number) return NUMBER;
+            if (value instanceof Boolean) return BOOLEAN;
+            if (value instanceof JSONObject) return OBJECT;
+            if (value instanceof JSONArray) return ARRAY;
+            return NULL;
+        }
+    }
+
+    private static class Field {
+
+        private final String[] path;
+        private final Type type;
+
+        private Field(final String[] path, final Type type) {
+            this.path = path;
+            this.type = type;
+        }
+    }
+}
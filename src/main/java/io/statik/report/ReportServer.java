@@ -1,22 +1,44 @@
 package io.statik.report;
 
 import com.trendrr.beanstalk.BeanstalkClient;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.statik.report.processing.CompactionTask;
+import io.statik.report.processing.Deduplicator;
+import io.statik.report.processing.DistinctCounter;
+import io.statik.report.processing.GeoDatabase;
+import io.statik.report.processing.PluginSets;
+import io.statik.report.processing.Pipeline;
 import io.statik.report.processing.ProcessThread;
+import io.statik.report.processing.SketchAggregator;
 
+import javax.net.ssl.SSLException;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
@@ -32,18 +54,156 @@ public class ReportServer {
     private final static Logger logger = Logger.getLogger("io.statik.report");
     private final Configuration c;
     private final MongoDB mdb;
+    private final ReportRouter router;
+    private final ReportSchema schema;
+    private final ConnectionGovernor governor;
+    private final BackpressureController backpressure;
+    private final AdaptiveSampler sampler;
+    private final RunMode mode;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "Scheduled task");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private Deduplicator deduplicator = null;
+    private SketchAggregator sketches = null;
+    private DistinctCounter distinct = null;
+    private GeoDatabase geo = null;
+    private PluginSets pluginSets = null;
+    private Tracer tracer = null;
+    private Pipeline pipeline = null;
     private final List<Client> clients = Collections.synchronizedList(new ArrayList<Client>());
 
     /**
-     * Starts the ReportServer with the given configuration file.
+     * Starts the ReportServer with the given configuration file, in the mode set by <code>config.mode</code>.
      *
      * @param configFileName File name to load as the configuration
      */
     public ReportServer(final String configFileName) {
-        this.setUpLogger();
+        this(configFileName, null);
+    }
+
+    /**
+     * Starts the ReportServer with the given configuration file and mode. Only the resources the mode needs are
+     * created: worker mode starts no listener, and ingest mode starts no processors.
+     *
+     * @param configFileName File name to load as the configuration
+     * @param mode           Mode to run in, or null to use <code>config.mode</code>
+     */
+    public ReportServer(final String configFileName, final RunMode mode) {
         this.c = new Configuration(new File(configFileName));
+        this.setUpLogger();
+        this.mode = mode != null ? mode : RunMode.fromName(this.c.getString("config.mode", "combined"));
+        if (this.mode == null) throw new IllegalArgumentException("Unknown mode: " + this.c.getString("config.mode", null));
+        this.getLogger().info("Running in " + this.mode.getName() + " mode.");
         this.mdb = new MongoDB(this);
-        this.startBeanstalkProcessors();
+        this.router = new ReportRouter(this.c);
+        if (this.c.getBoolean("config.tracing.enabled", false)) {
+            try {
+                this.tracer = new Tracer(this);
+            } catch (final IOException ex) {
+                this.getLogger().warning("Could not open the trace file; reports will not be traced:");
+                this.getLogger().log(Level.WARNING, ex.getMessage(), ex);
+            }
+        }
+        final int bootstrapInterval = Math.max(1, this.c.getInt("config.database.migration.interval_minutes", 10));
+        this.scheduler.scheduleWithFixedDelay(new SchemaBootstrap(this), 0, bootstrapInterval, TimeUnit.MINUTES);
+        this.schema = this.mode.isIngest() ? new ReportSchema(this.c) : null;
+        this.governor = this.mode.isIngest() ? new ConnectionGovernor(this.c) : null;
+        this.backpressure = this.mode.isIngest() ? new BackpressureController(this) : null;
+        this.sampler = this.mode.isIngest() && this.c.getBoolean("config.sampling.enabled", false) ? new AdaptiveSampler(this) : null;
+        if (this.mode.isWorker()) {
+            this.startBeanstalkProcessors();
+            this.startCompaction();
+        }
+        if (this.mode.isIngest()) {
+            this.startDatagramListener();
+            this.startListener();
+        }
+    }
+
+    /**
+     * Entry point. Creates a new {@link io.statik.report.ReportServer}, catching any exceptions.
+     * <p/>
+     * If any exception is caught, the application will exit with status 1.
+     *
+     * @param args Command-line arguments: <code>[--mode ingest|worker|combined] [config file]</code>
+     */
+    public static void main(final String[] args) {
+        try {
+            String configFileName = "config.json";
+            RunMode mode = null;
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].equals("--mode")) {
+                    configFileName = args[i];
+                    continue;
+                }
+                if (++i >= args.length || (mode = RunMode.fromName(args[i])) == null || mode == RunMode.BACKFILL) {
+                    throw new IllegalArgumentException("--mode must be one of ingest, worker or combined.");
+                }
+            }
+            new ReportServer(configFileName, mode);
+        } catch (final Throwable t) {
+            ReportServer.logger.severe("Could not start the report server due to the following exception: ");
+            ReportServer.logger.log(Level.SEVERE, t.getMessage(), t);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Binds the datagram listener on its own event loop, if <code>config.udp.enabled</code> is set. It listens on
+     * <code>config.udp.port</code>, which defaults to the TCP port.
+     */
+    private void startDatagramListener() {
+        if (!this.c.getBoolean("config.udp.enabled", false)) return;
+        final EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            final Bootstrap b = new Bootstrap();
+            b.group(group).channel(NioDatagramChannel.class);
+            b.option(ChannelOption.SO_RCVBUF, this.c.getInt("config.udp.receive_buffer_bytes", 4194304));
+            b.handler(new DatagramHandler(this));
+            final Channel ch = b.bind(
+                new InetSocketAddress(
+                    this.c.getString("config.bind.hostname", "localhost"),
+                    this.c.getInt("config.udp.port", this.c.getInt("config.bind.port", 12345))
+                )
+            ).sync().channel();
+            this.backpressure.addChild(ch); // reads pause with the TCP listener's
+            ch.closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    group.shutdownGracefully();
+                }
+            });
+        } catch (final Throwable t) {
+            this.getLogger().severe("An exception was thrown during datagram listener setup:");
+            this.getLogger().log(Level.SEVERE, t.getMessage(), t);
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * Binds the client listener and blocks until it closes. If <code>config.tls.enabled</code> is set, clients must
+     * connect with TLS; a TLS setup that fails to load stops the server rather than falling back to plaintext.
+     */
+    private void startListener() {
+        SslContext sslContext = null;
+        try {
+            if (this.c.getBoolean("config.tls.enabled", false)) sslContext = TlsMetrics.createContext(this.c);
+        } catch (final SSLException ex) {
+            throw new IllegalArgumentException("Invalid configuration for TLS", ex);
+        }
+        final SslContext tls = sslContext;
+        final TlsMetrics tlsMetrics = tls == null ? null : new TlsMetrics(this);
+        if (tlsMetrics != null) {
+            final int interval = Math.max(1, this.c.getInt("config.tls.metrics_seconds", 60));
+            this.scheduler.scheduleWithFixedDelay(tlsMetrics, interval, interval, TimeUnit.SECONDS);
+        }
+        this.backpressure.start();
+        if (this.sampler != null) this.sampler.start();
         final EventLoopGroup masterGroup = new NioEventLoopGroup();
         final EventLoopGroup slaveGroup = new NioEventLoopGroup();
         try {
@@ -53,7 +213,26 @@ public class ReportServer {
             sb.childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 public void initChannel(final SocketChannel ch) throws Exception {
+                    // Drop over-limit connections before anything is allocated for them
+                    final InetAddress address = ch.remoteAddress().getAddress();
+                    if (!ReportServer.this.governor.tryAcquire(address)) {
+                        ch.close();
+                        return;
+                    }
+                    ch.closeFuture().addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(final ChannelFuture future) throws Exception {
+                            ReportServer.this.governor.release(address);
+                        }
+                    });
+                    ReportServer.this.backpressure.addChild(ch);
                     ch.pipeline().addLast(new ReadTimeoutHandler(10, TimeUnit.SECONDS));
+                    if (tls != null) {
+                        final SslHandler ssl = tls.newHandler(ch.alloc());
+                        tlsMetrics.watch(ssl);
+                        ch.pipeline().addLast(ssl);
+                    }
+                    ch.pipeline().addLast(new PayloadDecompressor(ReportServer.this));
                     ch.pipeline().addLast(new ReportHandler(ReportServer.this));
                     ch.pipeline().addLast(new EndOfTheLine(ReportServer.this));
                 }
@@ -64,6 +243,7 @@ public class ReportServer {
                     this.getConfiguration().getInt("config.bind.port", 12345)
                 )
             ).sync();
+            this.backpressure.setServer(cf.channel());
             cf.channel().closeFuture().sync();
         } catch (final Throwable t) {
             this.getLogger().severe("An exception was thrown during server setup:");
@@ -74,23 +254,6 @@ public class ReportServer {
         }
     }
 
-    /**
-     * Entry point. Creates a new {@link io.statik.report.ReportServer}, catching any exceptions.
-     * <p/>
-     * If any exception is caught, the application will exit with status 1.
-     *
-     * @param args Command-line arguments
-     */
-    public static void main(final String[] args) {
-        try {
-            new ReportServer(args.length > 0 ? args[0] : "config.json");
-        } catch (final Throwable t) {
-            ReportServer.logger.severe("Could not start the report server due to the following exception: ");
-            ReportServer.logger.log(Level.SEVERE, t.getMessage(), t);
-            System.exit(1);
-        }
-    }
-
     /**
      * Sets up the main {@link java.util.logging.Logger}.
      * <p/>
@@ -101,24 +264,68 @@ public class ReportServer {
         ch.setFormatter(new Formatter() {
             @Override
             public String format(final LogRecord logRecord) {
-                return "[" + logRecord.getLevel().getLocalizedName() + "] " + logRecord.getMessage() + "\n";
+                final String line = "[" + logRecord.getLevel().getLocalizedName() + "] " + logRecord.getMessage() + "\n";
+                if (logRecord.getThrown() == null) return line;
+                final StringWriter sw = new StringWriter();
+                logRecord.getThrown().printStackTrace(new PrintWriter(sw));
+                return line + sw;
             }
         });
         this.getLogger().setUseParentHandlers(false);
-        this.getLogger().addHandler(ch);
+        this.getLogger().addHandler(new AsyncLogHandler(
+            ch,
+            this.c.getInt("config.logging.queue_size", 8192),
+            this.c.getInt("config.logging.per_site_burst", 5),
+            this.c.getInt("config.logging.per_site_window_seconds", 10) * 1000L
+        ));
     }
 
     /**
      * Starts a configurable amount of processors (if not configured, 4 is the default) in new threads. Processors sit
-     * and wait for beanstalkd to feed them jobs. Once receiving the job, the processor will process it and store it in
-     * the MongoDB.
+     * and wait for beanstalkd to feed them jobs. Once receiving the job, the processor hands it to the
+     * {@link io.statik.report.processing.Pipeline}, which processes it and stores it in the MongoDB.
      */
     private void startBeanstalkProcessors() {
+        if (this.getConfiguration().getBoolean("config.geo.enabled", false)) {
+            final String file = this.getConfiguration().getString("config.geo.file", "geo.bin");
+            try {
+                this.geo = new GeoDatabase(new File(file), Math.max(1, this.getConfiguration().getInt("config.geo.cache_size", 65536)));
+            } catch (final IOException ex) {
+                this.getLogger().warning("Could not open the geo database; reports will not be enriched:");
+                this.getLogger().log(Level.WARNING, ex.getMessage(), ex);
+            }
+        }
+        if (this.getConfiguration().getBoolean("config.plugin_sets.enabled", false)) this.pluginSets = new PluginSets(this);
+        if (this.getConfiguration().getBoolean("config.dedup.enabled", false)) {
+            this.deduplicator = new Deduplicator(this);
+            this.deduplicator.startPersisting();
+        }
+        if (this.getConfiguration().getBoolean("config.sketches.enabled", false)) {
+            final int interval = Math.max(1, this.getConfiguration().getInt("config.sketches.flush_seconds", 60));
+            this.sketches = new SketchAggregator(this);
+            this.scheduler.scheduleWithFixedDelay(this.sketches, interval, interval, TimeUnit.SECONDS);
+        }
+        if (this.getConfiguration().getBoolean("config.distinct.enabled", false)) {
+            final int interval = Math.max(1, this.getConfiguration().getInt("config.distinct.flush_seconds", 60));
+            this.distinct = new DistinctCounter(this);
+            this.scheduler.scheduleWithFixedDelay(this.distinct, interval, interval, TimeUnit.SECONDS);
+        }
+        this.pipeline = new Pipeline(this);
         for (int i = 0; i < this.getConfiguration().getInt("config.beanstalkd.processors", 4); i++) {
             new ProcessThread(this).start();
         }
     }
 
+    /**
+     * Schedules the {@link io.statik.report.processing.CompactionTask} every
+     * <code>config.retention.interval_minutes</code>, if retention is enabled.
+     */
+    private void startCompaction() {
+        if (!this.getConfiguration().getBoolean("config.retention.enabled", false)) return;
+        final int interval = Math.max(1, this.getConfiguration().getInt("config.retention.interval_minutes", 60));
+        this.scheduler.scheduleWithFixedDelay(new CompactionTask(this), 1, interval, TimeUnit.MINUTES);
+    }
+
     public Client getClient(final InetSocketAddress isa) {
         synchronized (this.getClients()) {
             for (final Client client : this.getClients()) {
@@ -153,6 +360,43 @@ public class ReportServer {
         return ReportServer.logger;
     }
 
+    /**
+     * Gets the {@link io.statik.report.processing.Deduplicator} shared by this server's processors.
+     *
+     * @return Deduplicator, or null if deduplication is disabled
+     */
+    public Deduplicator getDeduplicator() {
+        return this.deduplicator;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.processing.DistinctCounter} shared by this server's processors.
+     *
+     * @return DistinctCounter, or null if distinct counting is disabled
+     */
+    public DistinctCounter getDistinctCounter() {
+        return this.distinct;
+    }
+
+    /**
+     * Gets the identifier of this node, used to keep per-node documents apart. This is
+     * <code>config.node_id</code> if set, otherwise the JVM's name (usually <code>pid@hostname</code>).
+     *
+     * @return Node identifier
+     */
+    public String getNodeId() {
+        return this.getConfiguration().getString("config.node_id", ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * Gets the {@link io.statik.report.processing.SketchAggregator} shared by this server's processors.
+     *
+     * @return SketchAggregator, or null if sketches are disabled
+     */
+    public SketchAggregator getSketchAggregator() {
+        return this.sketches;
+    }
+
     /**
      * Gets the MongoDB link for this server.
      *
@@ -163,15 +407,115 @@ public class ReportServer {
     }
 
     /**
-     * Gets a new BeanstalkClient for immediate use.
+     * Gets the {@link io.statik.report.AdaptiveSampler} choosing which reports to store under overload.
+     *
+     * @return AdaptiveSampler, or null if sampling is disabled or not ingesting
+     */
+    public AdaptiveSampler getAdaptiveSampler() {
+        return this.sampler;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.ConnectionGovernor} limiting connections and datagrams per address.
+     *
+     * @return ConnectionGovernor, or null if not ingesting
+     */
+    public ConnectionGovernor getConnectionGovernor() {
+        return this.governor;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.BackpressureController} pausing reads while storage falls behind.
+     *
+     * @return BackpressureController, or null if not ingesting
+     */
+    public BackpressureController getBackpressureController() {
+        return this.backpressure;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.processing.GeoDatabase} reports are enriched from.
+     *
+     * @return GeoDatabase, or null if enrichment is disabled
+     */
+    public GeoDatabase getGeoDatabase() {
+        return this.geo;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.processing.PluginSets} resolving reports' plugin sets.
+     *
+     * @return PluginSets, or null if plugin sets are disabled or not processing
+     */
+    public PluginSets getPluginSets() {
+        return this.pluginSets;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.Tracer} sampling and exporting report traces.
+     *
+     * @return Tracer, or null if tracing is disabled
+     */
+    public Tracer getTracer() {
+        return this.tracer;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.processing.Pipeline} the processors feed reserved jobs to.
+     *
+     * @return Pipeline, or null if not processing
+     */
+    public Pipeline getPipeline() {
+        return this.pipeline;
+    }
+
+    /**
+     * Gets the mode this server is running in.
+     *
+     * @return RunMode
+     */
+    public RunMode getRunMode() {
+        return this.mode;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.ReportRouter} deciding which tube reports are queued in.
+     *
+     * @return ReportRouter
+     */
+    public ReportRouter getReportRouter() {
+        return this.router;
+    }
+
+    /**
+     * Gets the {@link io.statik.report.ReportSchema} incoming reports are validated against.
+     *
+     * @return ReportSchema, or null if not ingesting
+     */
+    public ReportSchema getReportSchema() {
+        return this.schema;
+    }
+
+    /**
+     * Gets a new BeanstalkClient for immediate use, using and watching the first configured tube.
      *
      * @return BeanstalkClient
      */
     public BeanstalkClient getNewBeanstalkClient() {
+        return this.getNewBeanstalkClient(this.getReportRouter().getTubes().get(0).getName());
+    }
+
+    /**
+     * Gets a new BeanstalkClient for immediate use, using and watching only the given tube.
+     *
+     * @param tube Tube to use and watch
+     * @return BeanstalkClient
+     */
+    public BeanstalkClient getNewBeanstalkClient(final String tube) {
         return new BeanstalkClient(
             this.getConfiguration().getString("config.beanstalkd.hostname", null),
             this.getConfiguration().getInt("config.beanstalkd.port", -1),
-            "processing"
+            tube
         );
     }
 }
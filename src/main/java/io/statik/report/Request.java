@@ -14,39 +14,6 @@ public class Request extends Configuration {
         super(request);
     }
 
-    /**
-     * Sanitizes the given array of plugins.
-     *
-     * @param jsonPlugins JSONArray containing plugins (may be empty)
-     * @return Sanitized JSONArray
-     */
-    private JSONArray createPluginList(final JSONArray jsonPlugins) {
-        final JSONArray plugins = new JSONArray();
-        for (int i = 0; i < jsonPlugins.length(); i++) {
-            final JSONObject jo = jsonPlugins.optJSONObject(i);
-            if (jo == null) continue;
-            final JSONObject plugin = new JSONObject();
-            plugin
-                .put("name", jo.getString("name"))
-                .put("version", jo.getString("version"));
-            if (jo.has("data")) {
-                final JSONArray jsonPluginCustomData = jo.getJSONArray("data");
-                final JSONArray pluginCustomData = new JSONArray();
-                for (int ii = 0; ii < jsonPluginCustomData.length(); ii++) {
-                    final JSONObject customData = jsonPluginCustomData.optJSONObject(ii);
-                    if (customData == null) continue;
-                    pluginCustomData.put(new JSONObject()
-                            .put("name", customData.getString("name"))
-                            .put("value", customData.get("value"))
-                    );
-                }
-                plugin.put("data", pluginCustomData);
-            }
-            plugins.put(plugin);
-        }
-        return plugins;
-    }
-
     /**
      * Creates a MongoDB-compatible list of plugins and their data from a JSONArray.
      *
@@ -93,39 +60,12 @@ public class Request extends Configuration {
     /**
      * Creates a new Request with only official keys.
      *
+     * @param schema ReportSchema to validate against
      * @return New, sanitized Request
-     * @throws org.json.JSONException If any key is missing or invalid
+     * @throws org.json.JSONException If any key is missing, invalid or over a limit
      */
-    public Request sanitize() throws JSONException {
-        final JSONObject system = this.getJSONObject("system");
-        final JSONObject systemOS = this.getJSONObject("system.os");
-        final JSONObject minecraft = this.getJSONObject("minecraft");
-        final JSONObject minecraftMod = this.getJSONObject("minecraft.mod");
-        try {
-            return new Request(new JSONObject()
-                .put("system", new JSONObject()
-                        .put("java", system.getString("java"))
-                        .put("cores", system.getInt("cores"))
-                        .put("memory", system.getLong("memory"))
-                        .put("os", new JSONObject()
-                                .put("name", systemOS.getString("name"))
-                                .put("version", systemOS.getString("version"))
-                                .put("arch", systemOS.getString("arch"))
-                        )
-                )
-                .put("minecraft", new JSONObject()
-                        .put("version", minecraft.getString("version"))
-                        .put("players", minecraft.getInt("players"))
-                        .put("online_mode", minecraft.getBoolean("online_mode"))
-                        .put("mod", new JSONObject()
-                                .put("name", minecraftMod.getString("name"))
-                                .put("version", minecraftMod.getString("version"))
-                        )
-                )
-                .put("plugins", this.createPluginList(this.getJSONArray("plugins"))));
-        } catch (final NullPointerException ex) {
-            throw new JSONException(ex);
-        }
+    public Request sanitize(final ReportSchema schema) throws JSONException {
+        return schema.validate(this.getConfigRoot());
     }
 
     @Override
@@ -0,0 +1,69 @@
+package io.statik.report;
+
+/**
+ * Roles a ReportServer process can run in, so ingest and processing can be scaled separately.
+ */
+public enum RunMode {
+    /**
+     * Accepts reports and queues them in beanstalkd, without processing them.
+     */
+    INGEST("ingest", true, false),
+    /**
+     * Processes queued reports into MongoDB, without listening for clients.
+     */
+    WORKER("worker", false, true),
+    /**
+     * Does both in one process.
+     */
+    COMBINED("combined", true, true),
+    /**
+     * Replays report dumps with {@link io.statik.report.processing.Backfill}, running neither the listener nor the
+     * processors.
+     */
+    BACKFILL("backfill", false, false);
+
+    private final String name;
+    private final boolean ingest;
+    private final boolean worker;
+
+    private RunMode(final String name, final boolean ingest, final boolean worker) {
+        this.name = name;
+        this.ingest = ingest;
+        this.worker = worker;
+    }
+
+    /**
+     * Gets the mode with the given name.
+     *
+     * @param name Name, such as <code>worker</code>
+     * @return RunMode, or null if the name is unknown
+     */
+    public static RunMode fromName(final String name) {
+        for (final RunMode mode : RunMode.values()) {
+            if (mode.getName().equalsIgnoreCase(name)) return mode;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Checks if this mode runs the client listener.
+     *
+     * @return true if ingesting
+     */
+    public boolean isIngest() {
+        return this.ingest;
+    }
+
+    /**
+     * Checks if this mode runs the beanstalkd processors and the tasks that go with them.
+     *
+     * @return true if processing
+     */
+    public boolean isWorker() {
+        return this.worker;
+    }
+}
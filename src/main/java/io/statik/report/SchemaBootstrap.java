@@ -0,0 +1,123 @@
+package io.statik.report;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import org.bson.types.ObjectId;
+
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Task that prepares the database for this server: it ensures the indexes the server queries by, then moves
+ * timestamps from the legacy layout into the binary UUID layout.
+ * <p/>
+ * Indexes are built in the background, so the collections stay usable meanwhile. Legacy timestamps, keyed by an
+ * ObjectId with a separate <code>uuid</code> field, are migrated in batches of
+ * <code>config.database.migration.batch_size</code> with a pause of <code>batch_delay_ms</code> between them. A
+ * timestamp already written in the new layout since the upgrade is newer, so the legacy one is just removed. Until the
+ * migration finishes, lookups fall back to the legacy layout. The task runs every
+ * <code>config.database.migration.interval_minutes</code> until it has succeeded once.
+ */
+public class SchemaBootstrap implements Runnable {
+
+    /**
+     * Smallest ObjectId. Legacy timestamps are keyed by ObjectIds, which sort after every binary key.
+     */
+    private static final ObjectId MIN_OBJECT_ID = new ObjectId(new byte[12]);
+    private final ReportServer rs;
+    private final int batchSize;
+    private final long batchDelay;
+    private volatile boolean indexed = false;
+    private volatile boolean done = false;
+
+    public SchemaBootstrap(final ReportServer rs) {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        this.batchSize = Math.max(1, c.getInt("config.database.migration.batch_size", 500));
+        this.batchDelay = Math.max(0, c.getInt("config.database.migration.batch_delay_ms", 200));
+    }
+
+    /**
+     * Ensures an index on a configured collection, if it is configured.
+     *
+     * @param key    Collection key
+     * @param fields Indexed fields
+     * @param sparse Whether documents without the fields are left out of the index
+     */
+    private void ensureIndex(final String key, final DBObject fields, final boolean sparse) {
+        final DBCollection dbc = this.rs.getMongoDB().getCollection(key);
+        if (dbc == null) return;
+        dbc.createIndex(fields, new BasicDBObject("background", true).append("sparse", sparse));
+    }
+
+    private void ensureIndexes() {
+        // legacy timestamps are looked up by uuid until they are migrated
+        this.ensureIndex("timestamps", new BasicDBObject("uuid", 1), true);
+        this.ensureIndex("sketches", new BasicDBObject("field", 1).append("hour", 1), false);
+        this.ensureIndex("distinct", new BasicDBObject("dimension", 1).append("value", 1).append("day", 1), false);
+        // the bucketed layout's {hour, shard, count} index is built by BucketStore
+        this.rs.getLogger().info("Database indexes are in place.");
+    }
+
+    /**
+     * Migrates one batch of legacy timestamps.
+     *
+     * @return true if a full batch was migrated and more may remain
+     */
+    private boolean migrateBatch() {
+        final DBCollection dbc = this.rs.getMongoDB().getCollection("timestamps");
+        int count = 0;
+        try (final DBCursor cursor = dbc.find(new BasicDBObject("_id", new BasicDBObject("$gte", SchemaBootstrap.MIN_OBJECT_ID))).limit(this.batchSize)) {
+            for (final DBObject legacy : cursor) {
+                count++;
+                final UUID uuid = MongoDB.getTimestampUUID(legacy);
+                if (uuid != null) {
+                    final BasicDBObject migrated = new BasicDBObject("_id", MongoDB.uuidKey(uuid)).append("timestamp", legacy.get("timestamp"));
+                    if (legacy.containsField("plugin_set")) migrated.append("plugin_set", legacy.get("plugin_set"));
+                    try {
+                        dbc.insert(migrated, WriteConcern.ACKNOWLEDGED); // the timestamps write concern may not report duplicates
+                    } catch (final MongoException ex) {
+                        // a duplicate was written in the new layout since the upgrade, so the legacy timestamp is stale
+                        if (ex.getCode() != 11000) throw ex;
+                    }
+                }
+                dbc.remove(new BasicDBObject("_id", legacy.get("_id")));
+            }
+        }
+        return count >= this.batchSize;
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(this.batchDelay);
+            return true;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        if (this.done) return;
+        try {
+            if (!this.indexed) {
+                this.ensureIndexes();
+                this.indexed = true;
+            }
+            while (this.migrateBatch()) {
+                if (!this.pause()) return;
+            }
+            this.rs.getMongoDB().setLegacyTimestamps(false); // the sparse uuid index is empty from here on
+            this.done = true;
+            this.rs.getLogger().info("Timestamps are in the binary UUID layout.");
+        } catch (final MongoException ex) {
+            this.rs.getLogger().warning("Database bootstrap failed; it will be retried:");
+            this.rs.getLogger().log(Level.WARNING, ex.getMessage(), ex);
+        }
+    }
+}
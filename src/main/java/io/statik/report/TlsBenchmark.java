@@ -0,0 +1,141 @@
+package io.statik.report;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Command to measure the server's CPU cost of full and resumed TLS handshakes on one core.
+ * <p/>
+ * Client and server engines handshake over in-memory buffers on a single thread, so the network plays no part. Only
+ * the time spent in the server engine is counted, which is what a listener thread would spend. Resumed handshakes
+ * reuse the client's cached session; full handshakes invalidate it first. The server context comes from
+ * <code>config.tls</code> in the given configuration, so a PEM certificate chain and key are needed; Netty cannot
+ * generate a self-signed certificate without BouncyCastle.
+ */
+public class TlsBenchmark {
+
+    private static final String PEER_HOST = "benchmark.invalid";
+    private static final int PEER_PORT = 443;
+    private final SslContext server;
+    private final SslContext client;
+    private long serverNanos = 0L;
+
+    private TlsBenchmark(final SslContext server, final SslContext client) {
+        this.server = server;
+        this.client = client;
+    }
+
+    /**
+     * Entry point.
+     *
+     * @param args Command-line arguments: <code>&lt;config file&gt; [handshakes]</code>
+     * @throws Exception If the contexts cannot be created or a handshake fails
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TlsBenchmark <config file> [handshakes]");
+            System.exit(1);
+        }
+        final int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final SslContext server = TlsMetrics.createContext(new Configuration(new File(args[0])));
+        final TlsBenchmark benchmark = new TlsBenchmark(server, SslContext.newClientContext(InsecureTrustManagerFactory.INSTANCE));
+        benchmark.measure(true, handshakes / 4); // warm up
+        benchmark.measure(false, handshakes / 4);
+        final double full = benchmark.measure(false, handshakes);
+        final double resumed = benchmark.measure(true, handshakes);
+        System.out.println(String.format(Locale.ROOT, "Full:    %8.1f handshakes/s per core (%.1f us each)", 1e9D / full, full / 1000D));
+        System.out.println(String.format(Locale.ROOT, "Resumed: %8.1f handshakes/s per core (%.1f us each)", 1e9D / resumed, resumed / 1000D));
+        System.out.println(String.format(Locale.ROOT, "Resumption saves %.0f%% of the server's handshake time.", 100D * (1D - resumed / full)));
+    }
+
+    /**
+     * Runs handshakes and measures the server's share.
+     *
+     * @param resume     Whether to resume the previous session
+     * @param handshakes Handshakes to run
+     * @return Average server nanoseconds per handshake
+     * @throws SSLException If a handshake fails
+     */
+    private double measure(final boolean resume, final int handshakes) throws SSLException {
+        this.handshake(); // makes sure there is a session to resume, or to invalidate
+        this.serverNanos = 0L;
+        int resumed = 0;
+        for (int i = 0; i < handshakes; i++) {
+            final long start = System.currentTimeMillis();
+            final SSLEngine serverEngine = this.handshake();
+            if (TlsMetrics.isResumed(serverEngine.getSession(), start)) resumed++;
+            if (!resume) serverEngine.getSession().invalidate();
+        }
+        if (resume && resumed < handshakes / 2) {
+            System.out.println("Only " + resumed + " of " + handshakes + " handshakes resumed; the provider may not resume sessions.");
+        }
+        return (double) this.serverNanos / Math.max(1, handshakes);
+    }
+
+    private SSLEngine handshake() throws SSLException {
+        final SSLEngine clientEngine = this.client.newEngine(UnpooledByteBufAllocator.DEFAULT, TlsBenchmark.PEER_HOST, TlsBenchmark.PEER_PORT);
+        final SSLEngine serverEngine = this.server.newEngine(UnpooledByteBufAllocator.DEFAULT);
+        final ByteBuffer toServer = ByteBuffer.allocate(clientEngine.getSession().getPacketBufferSize());
+        final ByteBuffer toClient = ByteBuffer.allocate(serverEngine.getSession().getPacketBufferSize());
+        final ByteBuffer app = ByteBuffer.allocate(Math.max(clientEngine.getSession().getApplicationBufferSize(), serverEngine.getSession().getApplicationBufferSize()));
+        clientEngine.beginHandshake();
+        long start = System.nanoTime();
+        serverEngine.beginHandshake();
+        this.serverNanos += System.nanoTime() - start;
+        for (int steps = 0; TlsBenchmark.isHandshaking(clientEngine) || TlsBenchmark.isHandshaking(serverEngine); steps++) {
+            if (steps > 1000) throw new SSLException("Handshake did not finish.");
+            TlsBenchmark.step(clientEngine, toServer, toClient, app);
+            start = System.nanoTime();
+            TlsBenchmark.step(serverEngine, toClient, toServer, app);
+            this.serverNanos += System.nanoTime() - start;
+        }
+        // read anything sent after the handshake, such as a TLS 1.3 session ticket, so the client can resume
+        TlsBenchmark.drain(clientEngine, toClient, app);
+        return serverEngine;
+    }
+
+    private static boolean isHandshaking(final SSLEngine engine) {
+        final HandshakeStatus status = engine.getHandshakeStatus();
+        return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Advances one engine's side of the handshake. Both buffers are left ready for writing.
+     */
+    private static void step(final SSLEngine engine, final ByteBuffer out, final ByteBuffer in, final ByteBuffer app) throws SSLException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_WRAP:
+                engine.wrap(ByteBuffer.allocate(0), out);
+                break;
+            case NEED_UNWRAP:
+                TlsBenchmark.drain(engine, in, app);
+                break;
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) task.run();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void drain(final SSLEngine engine, final ByteBuffer in, final ByteBuffer app) throws SSLException {
+        in.flip();
+        try {
+            while (in.hasRemaining()) {
+                if (engine.unwrap(in, app).bytesConsumed() == 0) break;
+                app.clear();
+            }
+        } finally {
+            in.compact();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.statik.report;
+
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import org.json.JSONArray;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class to set up TLS for the listener and count what its handshakes cost.
+ * <p/>
+ * The context is built from <code>config.tls</code>: a PEM certificate chain and PKCS#8 key, the cipher suites to
+ * allow (the provider's defaults if empty), and the size and lifetime of the server-side session cache. Clients send
+ * every half hour, so a session timeout above that lets most of them resume instead of paying for a full handshake.
+ * The <code>openssl</code> provider, which needs netty-tcnative, also issues session tickets, so resumption works
+ * across a restart or another node behind the same balancer; the <code>jdk</code> provider resumes from its own cache
+ * only.
+ * <p/>
+ * Every <code>config.tls.metrics_seconds</code>, the counts of full, resumed and failed handshakes since the last
+ * report are logged with the average time each kind took.
+ */
+public class TlsMetrics implements Runnable {
+
+    private final ReportServer rs;
+    private final AtomicLong full = new AtomicLong();
+    private final AtomicLong fullNanos = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong resumedNanos = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public TlsMetrics(final ReportServer rs) {
+        this.rs = rs;
+    }
+
+    /**
+     * Creates the server's TLS context from its configuration.
+     *
+     * @param c Configuration to read from
+     * @return SslContext
+     * @throws SSLException If the certificate or key cannot be loaded, or the provider is unavailable
+     */
+    public static SslContext createContext(final Configuration c) throws SSLException {
+        final String providerName = c.getString("config.tls.provider", "jdk");
+        final SslProvider provider;
+        try {
+            provider = SslProvider.valueOf(providerName.toUpperCase());
+        } catch (final IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid TLS provider: " + providerName, ex);
+        }
+        List<String> ciphers = null; // provider defaults
+        final JSONArray cipherArray = c.getJSONArray("config.tls.ciphers");
+        if (cipherArray != null && cipherArray.length() > 0) {
+            ciphers = new ArrayList<>(cipherArray.length());
+            for (int i = 0; i < cipherArray.length(); i++) ciphers.add(cipherArray.getString(i));
+        }
+        return SslContext.newServerContext(
+            provider,
+            new File(c.getString("config.tls.cert_chain", "cert.pem")),
+            new File(c.getString("config.tls.key", "key.pem")),
+            c.getString("config.tls.key_password", null),
+            ciphers,
+            null,
+            Math.max(0, c.getInt("config.tls.session_cache_size", 20000)),
+            Math.max(0, c.getInt("config.tls.session_timeout_seconds", 3600))
+        );
+    }
+
+    /**
+     * Decides whether a finished handshake resumed an earlier session, which was then created before the handshake
+     * began. Providers that do not report session creation times count every handshake as full.
+     *
+     * @param session    Negotiated session
+     * @param startMillis Time the handshake began, in milliseconds
+     * @return true if the session was resumed
+     */
+    public static boolean isResumed(final SSLSession session, final long startMillis) {
+        final long created = session.getCreationTime();
+        return created > 0L && created < startMillis;
+    }
+
+    /**
+     * Starts counting the handshake of a new channel.
+     *
+     * @param ssl TLS handler of the channel, before its handshake begins
+     */
+    public void watch(final SslHandler ssl) {
+        final long startMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        ssl.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(final Future<Channel> future) throws Exception {
+                final long elapsed = System.nanoTime() - startNanos;
+                if (!future.isSuccess()) {
+                    TlsMetrics.this.failed.incrementAndGet();
+                } else if (TlsMetrics.isResumed(ssl.engine().getSession(), startMillis)) {
+                    TlsMetrics.this.resumed.incrementAndGet();
+                    TlsMetrics.this.resumedNanos.addAndGet(elapsed);
+                } else {
+                    TlsMetrics.this.full.incrementAndGet();
+                    TlsMetrics.this.fullNanos.addAndGet(elapsed);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        final long full = this.full.getAndSet(0L);
+        final long fullNanos = this.fullNanos.getAndSet(0L);
+        final long resumed = this.resumed.getAndSet(0L);
+        final long resumedNanos = this.resumedNanos.getAndSet(0L);
+        final long failed = this.failed.getAndSet(0L);
+        if (full + resumed + failed == 0L) return;
+        this.rs.getLogger().info("TLS handshakes: " + full + " full (" + (full == 0L ? 0L : fullNanos / full / 1000L) + " us avg), "
+            + resumed + " resumed (" + (resumed == 0L ? 0L : resumedNanos / resumed / 1000L) + " us avg), " + failed + " failed.");
+    }
+}
@@ -0,0 +1,92 @@
+package io.statik.report;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timings of one sampled report on its way from the socket to MongoDB.
+ * <p/>
+ * A context has an id and the time its report was received, and records each stage the report passes as microseconds
+ * since it was received. It travels with the report in its beanstalkd job, so the worker adds its stages to the ones
+ * recorded while ingesting. Within a process, stages are timed with {@link System#nanoTime()}; a context read back
+ * from a job is anchored to the wall clock once, so the gap between ingest and worker stages includes any clock skew
+ * between the two hosts.
+ */
+public class TraceContext {
+
+    private final long id;
+    private final long received;
+    private final long startNanos;
+    private final Map<String, Long> stages = new LinkedHashMap<>();
+
+    private TraceContext(final long id, final long received, final long startNanos) {
+        this.id = id;
+        this.received = received;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Starts a context for a report received now.
+     *
+     * @param id Trace id
+     * @return TraceContext
+     */
+    public static TraceContext start(final long id) {
+        return new TraceContext(id, System.currentTimeMillis(), System.nanoTime());
+    }
+
+    /**
+     * Reads a context from its JSON form, continuing it in this process.
+     *
+     * @param jo JSON form, as made by {@link #toJSON()}
+     * @return TraceContext
+     * @throws JSONException If the JSON is not a trace context
+     */
+    public static TraceContext fromJSON(final JSONObject jo) throws JSONException {
+        final long received = jo.getLong("received");
+        final long elapsed = Math.max(0L, System.currentTimeMillis() - received) * 1000000L;
+        final TraceContext trace = new TraceContext(Long.parseLong(jo.getString("id"), 16), received, System.nanoTime() - elapsed);
+        final JSONObject stages = jo.optJSONObject("stages");
+        if (stages == null) return trace;
+        for (final Iterator<?> keys = stages.keys(); keys.hasNext(); ) {
+            final String stage = (String) keys.next();
+            trace.stages.put(stage, stages.getLong(stage));
+        }
+        return trace;
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    public long getReceived() {
+        return this.received;
+    }
+
+    /**
+     * Records that the report has passed a stage.
+     *
+     * @param stage Stage name
+     */
+    public void mark(final String stage) {
+        this.stages.put(stage, (System.nanoTime() - this.startNanos) / 1000L);
+    }
+
+    /**
+     * Converts this context to JSON.
+     *
+     * @return JSON form, with the id in hexadecimal so it survives JSON parsers without 64-bit integers
+     */
+    public JSONObject toJSON() {
+        final JSONObject stages = new JSONObject();
+        for (final Map.Entry<String, Long> entry : this.stages.entrySet()) stages.put(entry.getKey(), entry.getValue());
+        return new JSONObject()
+            .put("id", Long.toHexString(this.id))
+            .put("received", this.received)
+            .put("stages", stages);
+    }
+}
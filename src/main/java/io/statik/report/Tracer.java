@@ -0,0 +1,94 @@
+package io.statik.report;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Class to sample reports for tracing and export their {@link io.statik.report.TraceContext}s.
+ * <p/>
+ * A fraction <code>config.tracing.sample_rate</code> of reports get a context when received. Finished contexts are
+ * appended to <code>config.tracing.file</code> as one JSON object per line by a background thread, tagged with the
+ * node and the side (ingest or worker) that exported them; both sides export under the same id, so the lines of one
+ * report can be joined. Contexts are dropped if the writer falls <code>queue_size</code> lines behind.
+ */
+public class Tracer {
+
+    private final ReportServer rs;
+    private final double sampleRate;
+    private final BlockingQueue<String> queue;
+    private final Writer writer;
+
+    /**
+     * Creates a new Tracer from the server's configuration and starts its writer.
+     *
+     * @param rs ReportServer this is running from
+     * @throws IOException If the trace file cannot be opened
+     */
+    public Tracer(final ReportServer rs) throws IOException {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        this.sampleRate = Math.max(0D, Math.min(1D, c.getDouble("config.tracing.sample_rate", 0.01D)));
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, c.getInt("config.tracing.queue_size", 4096)));
+        final String file = c.getString("config.tracing.file", "traces.jsonl");
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charset.forName("UTF-8")));
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Tracer.this.write();
+            }
+        }, "Trace writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Decides whether to trace a report being received now.
+     *
+     * @return New TraceContext, or null if the report is not sampled
+     */
+    public TraceContext sample() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() >= this.sampleRate) return null;
+        return TraceContext.start(random.nextLong() & Long.MAX_VALUE); // non-negative, so the id round-trips through hexadecimal
+    }
+
+    /**
+     * Exports a finished context.
+     *
+     * @param trace Context
+     * @param side  Side of the pipeline exporting it, such as <code>ingest</code>
+     */
+    public void export(final TraceContext trace, final String side) {
+        final JSONObject jo = trace.toJSON().put("node", this.rs.getNodeId()).put("side", side);
+        this.queue.offer(jo.toString()); // dropped if the writer is behind
+    }
+
+    private void write() {
+        while (true) {
+            try {
+                String line = this.queue.poll(1L, TimeUnit.SECONDS);
+                while (line != null) {
+                    this.writer.write(line);
+                    this.writer.write('\n');
+                    line = this.queue.poll();
+                }
+                this.writer.flush();
+            } catch (final InterruptedException ex) {
+                return;
+            } catch (final IOException ex) {
+                this.rs.getLogger().log(Level.WARNING, "Could not write traces: " + ex.getMessage(), ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package io.statik.report.processing;
+
+import io.statik.report.ReportServer;
+import io.statik.report.TraceContext;
+import io.statik.report.Tracer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Last pipeline stage, which hands processed jobs back to the {@link io.statik.report.processing.ProcessRunnable} that
+ * reserved them to be deleted. beanstalkd only lets the reserving connection delete a job.
+ */
+public class AckStage implements PipelineStage {
+
+    private final ReportServer rs;
+
+    public AckStage(final ReportServer rs) {
+        this.rs = rs;
+    }
+
+    @Override
+    public void process(final List<ProcessingJob> jobs) {
+        final Tracer tracer = this.rs.getTracer();
+        final Map<ProcessRunnable, List<ProcessingJob>> bySource = new IdentityHashMap<>();
+        for (final ProcessingJob job : jobs) {
+            List<ProcessingJob> list = bySource.get(job.getSource());
+            if (list == null) bySource.put(job.getSource(), list = new ArrayList<>());
+            list.add(job);
+            final TraceContext trace = job.getReport() == null ? null : job.getReport().getTrace();
+            if (trace != null && tracer != null) {
+                trace.mark("acknowledged");
+                tracer.export(trace, "worker");
+            }
+        }
+        for (final Map.Entry<ProcessRunnable, List<ProcessingJob>> entry : bySource.entrySet()) {
+            entry.getKey().acknowledge(entry.getValue());
+        }
+    }
+}
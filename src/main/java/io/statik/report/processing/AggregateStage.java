@@ -0,0 +1,30 @@
+package io.statik.report.processing;
+
+import io.statik.report.ReportServer;
+import io.statik.report.TraceContext;
+
+import java.util.List;
+
+/**
+ * Pipeline stage that records reports in the sketch and distinct-count aggregates, if enabled.
+ */
+public class AggregateStage implements PipelineStage {
+
+    private final ReportServer rs;
+
+    public AggregateStage(final ReportServer rs) {
+        this.rs = rs;
+    }
+
+    @Override
+    public void process(final List<ProcessingJob> jobs) {
+        final SketchAggregator sketches = this.rs.getSketchAggregator();
+        final DistinctCounter distinct = this.rs.getDistinctCounter();
+        for (final ProcessingJob job : jobs) {
+            if (sketches != null) sketches.record(job.getReport());
+            if (distinct != null) distinct.record(job.getReport());
+            final TraceContext trace = job.getReport().getTrace();
+            if (trace != null) trace.mark("recorded");
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package io.statik.report.processing;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import io.statik.report.Configuration;
+import io.statik.report.QueuedReport;
+import io.statik.report.ReportSchema;
+import io.statik.report.ReportServer;
+import io.statik.report.Request;
+import io.statik.report.RunMode;
+import org.bson.types.ObjectId;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Command to replay archived report dumps straight into the data collection, bypassing the network protocol and
+ * beanstalkd.
+ * <p/>
+ * Dumps hold one report per line, either a bare report or a queued job's payload. Files are streamed through
+ * memory-mapped windows of <code>config.backfill.window_bytes</code>, cut into batches of <code>batch_size</code>
+ * lines, and each batch is sanitized and bulk-inserted on one of <code>threads</code> workers; at most
+ * <code>max_in_flight</code> batches are read ahead of the inserts. Every report gets an ObjectId made from its receive
+ * time and its position in the dump, so compaction ages it by when it was received, summarizing it in its backlog pass
+ * if it lands below the compaction checkpoint, and replaying a batch twice only produces duplicate key errors, which
+ * are ignored. Progress is checkpointed to <code>checkpoint_file</code> up to the last batch before which every batch
+ * was inserted, and <code>--resume</code> continues from there.
+ * <p/>
+ * With the bucketed layout, reports are stored one at a time through {@link io.statik.report.processing.BucketStore}
+ * and replaying is not idempotent.
+ */
+public class Backfill {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final ReportServer rs;
+    private final ReportSchema schema;
+    private final ReportStore store;
+    private final int windowBytes;
+    private final int batchSize;
+    private final int threads;
+    private final Semaphore inFlight;
+    private final File checkpointFile;
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    /**
+     * Batches that finished out of order, by sequence number, waiting for the ones before them.
+     */
+    private final Map<Long, Batch> finished = new TreeMap<>();
+    private long nextToCheckpoint = 0L;
+    private long lastProgressLog = 0L;
+    private volatile Throwable failure = null;
+
+    /**
+     * Creates a new Backfill from the server's configuration.
+     *
+     * @param rs ReportServer this is running from
+     */
+    public Backfill(final ReportServer rs) {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        this.schema = new ReportSchema(c);
+        final String layout = c.getString("config.database.layout", "document");
+        this.store = layout.equalsIgnoreCase("bucketed") ? new BucketStore(this.rs) : null;
+        this.windowBytes = Math.max(1 << 20, c.getInt("config.backfill.window_bytes", 64 << 20));
+        this.batchSize = Math.max(1, c.getInt("config.backfill.batch_size", 1000));
+        this.threads = Math.max(1, c.getInt("config.backfill.threads", Runtime.getRuntime().availableProcessors()));
+        this.inFlight = new Semaphore(Math.max(1, c.getInt("config.backfill.max_in_flight", this.threads * 2)));
+        this.checkpointFile = new File(c.getString("config.backfill.checkpoint_file", "backfill.checkpoint"));
+    }
+
+    /**
+     * Entry point.
+     *
+     * @param args Command-line arguments: <code>[--resume] &lt;config file&gt; &lt;dump file&gt;...</code>
+     */
+    public static void main(final String[] args) {
+        boolean resume = false;
+        String configFileName = null;
+        final List<File> files = new ArrayList<>();
+        for (final String arg : args) {
+            if (arg.equals("--resume")) resume = true;
+            else if (configFileName == null) configFileName = arg;
+            else files.add(new File(arg));
+        }
+        if (configFileName == null || files.isEmpty()) {
+            System.err.println("Usage: Backfill [--resume] <config file> <dump file>...");
+            System.exit(1);
+        }
+        final ReportServer rs = new ReportServer(configFileName, RunMode.BACKFILL);
+        try {
+            new Backfill(rs).run(files, resume);
+        } catch (final Throwable t) {
+            rs.getLogger().log(Level.SEVERE, "Backfill failed; rerun with --resume to continue from the checkpoint: " + t.getMessage(), t);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Makes the id of a replayed report, the same each time the same dump is replayed.
+     *
+     * @param received Time the report was received, in milliseconds
+     * @param file     Index of the dump file
+     * @param line     Line number within the dump file
+     * @return ObjectId
+     */
+    private static ObjectId createId(final long received, final int file, final long line) {
+        final ByteBuffer bytes = ByteBuffer.allocate(12); // big-endian, as ObjectIds sort
+        bytes.putInt((int) (received / 1000L)).putInt(file).putInt((int) line);
+        return new ObjectId(bytes.array());
+    }
+
+    /**
+     * Replays dump files.
+     *
+     * @param files  Dump files, in order
+     * @param resume Whether to continue from the checkpoint instead of the start
+     * @throws IOException          If a file or the checkpoint cannot be read
+     * @throws InterruptedException If interrupted while waiting for inserts
+     */
+    public void run(final List<File> files, final boolean resume) throws IOException, InterruptedException {
+        int startFile = 0;
+        long startOffset = 0L;
+        long startLine = 0L;
+        if (resume && this.checkpointFile.exists()) {
+            final JSONObject checkpoint = new JSONObject(new String(Files.readAllBytes(this.checkpointFile.toPath()), Backfill.UTF8));
+            startFile = checkpoint.getInt("file");
+            startOffset = checkpoint.getLong("offset");
+            startLine = checkpoint.getLong("line");
+            this.rs.getLogger().info("Resuming at line " + startLine + " of dump file " + startFile + ".");
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        final long start = System.currentTimeMillis();
+        long sequence = 0L;
+        try {
+            for (int i = startFile; i < files.size() && this.failure == null; i++) {
+                sequence = this.read(pool, files.get(i), i, i == startFile ? startOffset : 0L, i == startFile ? startLine : 0L, sequence);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (this.failure != null) throw new IOException("A batch could not be inserted", this.failure);
+        final long seconds = Math.max(1L, (System.currentTimeMillis() - start) / 1000L);
+        this.rs.getLogger().info("Backfill done: " + this.inserted.get() + " reports inserted (" + this.inserted.get() / seconds + "/s), "
+            + this.duplicates.get() + " already present, " + this.rejected.get() + " rejected.");
+    }
+
+    /**
+     * Streams one dump file into batches.
+     *
+     * @return Next batch sequence number
+     */
+    private long read(final ExecutorService pool, final File file, final int fileIndex, final long offset, final long line, long sequence) throws IOException, InterruptedException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final FileChannel fc = raf.getChannel();
+            final long size = fc.size();
+            long position = offset;
+            long lineNumber = line;
+            Batch batch = new Batch(fileIndex, lineNumber);
+            while (position < size && this.failure == null) {
+                final MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, position, Math.min(this.windowBytes, size - position));
+                int lineStart = 0;
+                for (int i = 0; i < window.limit(); i++) {
+                    if (window.get(i) != '\n') continue;
+                    if (i > lineStart) batch.lines.add(Backfill.slice(window, lineStart, i));
+                    else batch.lines.add(null); // keep line numbers aligned with the file
+                    lineStart = i + 1;
+                    lineNumber++;
+                    if (batch.lines.size() < this.batchSize) continue;
+                    batch.end(position + lineStart, lineNumber);
+                    this.submit(pool, batch, sequence++);
+                    batch = new Batch(fileIndex, lineNumber);
+                }
+                if (position + window.limit() >= size) {
+                    if (lineStart < window.limit()) {
+                        batch.lines.add(Backfill.slice(window, lineStart, window.limit())); // last line without a newline
+                        lineNumber++;
+                    }
+                    position = size;
+                } else if (lineStart == 0) {
+                    throw new IOException("A line in " + file + " is longer than the " + this.windowBytes + " byte window.");
+                } else position += lineStart; // remap from the start of the unfinished line
+            }
+            if (!batch.lines.isEmpty() && this.failure == null) {
+                batch.end(size, lineNumber);
+                this.submit(pool, batch, sequence++);
+            }
+        }
+        return sequence;
+    }
+
+    private static byte[] slice(final MappedByteBuffer window, final int from, final int to) {
+        final byte[] data = new byte[to - from];
+        for (int i = 0; i < data.length; i++) data[i] = window.get(from + i);
+        return data;
+    }
+
+    private void submit(final ExecutorService pool, final Batch batch, final long sequence) throws InterruptedException {
+        this.inFlight.acquire(); // bounds how far reading runs ahead of inserting
+        batch.sequence = sequence;
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Backfill.this.insert(batch);
+                    Backfill.this.finish(batch);
+                } catch (final Throwable t) {
+                    if (Backfill.this.failure == null) Backfill.this.failure = t;
+                } finally {
+                    Backfill.this.inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sanitizes and inserts one batch.
+     *
+     * @param batch Batch to insert
+     * @throws MongoException If inserting fails for any reason other than duplicate keys
+     */
+    private void insert(final Batch batch) throws MongoException {
+        final List<DBObject> documents = new ArrayList<>(batch.lines.size());
+        final List<QueuedReport> reports = new ArrayList<>(batch.lines.size());
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < batch.lines.size(); i++) {
+            final byte[] line = batch.lines.get(i);
+            if (line == null) continue;
+            try {
+                final QueuedReport parsed = QueuedReport.fromBytes(line);
+                final Request r = parsed.getReport().sanitize(this.schema);
+                final long received = parsed.getReceived() > 0L ? parsed.getReceived() : now;
+                final QueuedReport qr = new QueuedReport(parsed.getServerUUID(), received, r, parsed.getAddress());
+                if (this.store != null) {
+                    reports.add(qr);
+                    continue;
+                }
+                final DBObject dbo = r.createMongoVersion();
+                dbo.put("_id", Backfill.createId(received, batch.file, batch.firstLine + i));
+                documents.add(dbo);
+            } catch (final JSONException ex) {
+                this.rejected.incrementAndGet();
+            }
+        }
+        batch.lines.clear(); // the checkpoint only needs the offsets
+        if (this.store != null) {
+            for (final QueuedReport qr : reports) this.store.store(qr);
+            this.inserted.addAndGet(reports.size());
+            return;
+        }
+        if (documents.isEmpty()) return;
+        final DBCollection dbc = this.rs.getMongoDB().getCollection("data");
+        final BulkWriteOperation bulk = dbc.initializeUnorderedBulkOperation();
+        for (final DBObject dbo : documents) bulk.insert(dbo);
+        final WriteConcern wc = dbc.getWriteConcern().callGetLastError() ? dbc.getWriteConcern() : WriteConcern.ACKNOWLEDGED;
+        try {
+            this.inserted.addAndGet(bulk.execute(wc).getInsertedCount());
+        } catch (final BulkWriteException ex) {
+            for (final BulkWriteError error : ex.getWriteErrors()) {
+                if (error.getCode() != 11000) throw ex; // anything but a duplicate key
+            }
+            if (ex.getWriteConcernError() != null) throw ex;
+            this.duplicates.addAndGet(ex.getWriteErrors().size());
+            this.inserted.addAndGet(ex.getWriteResult().getInsertedCount());
+        }
+    }
+
+    /**
+     * Records a batch as inserted, advancing the checkpoint past every batch inserted so far without gaps.
+     *
+     * @param batch Inserted batch
+     * @throws IOException If the checkpoint cannot be written
+     */
+    private synchronized void finish(final Batch batch) throws IOException {
+        this.finished.put(batch.sequence, batch);
+        Batch last = null;
+        while (this.finished.containsKey(this.nextToCheckpoint)) last = this.finished.remove(this.nextToCheckpoint++);
+        if (last == null) return;
+        final JSONObject checkpoint = new JSONObject()
+            .put("file", last.file)
+            .put("offset", last.endOffset)
+            .put("line", last.endLine);
+        final File temporary = new File(this.checkpointFile.getPath() + ".tmp");
+        Files.write(temporary.toPath(), checkpoint.toString().getBytes(Backfill.UTF8));
+        if (!temporary.renameTo(this.checkpointFile) && !(this.checkpointFile.delete() && temporary.renameTo(this.checkpointFile))) {
+            throw new IOException("Could not replace the checkpoint " + this.checkpointFile);
+        }
+        final long now = System.currentTimeMillis();
+        if (now - this.lastProgressLog < 10000L) return;
+        this.lastProgressLog = now;
+        this.rs.getLogger().info("Backfilled " + this.inserted.get() + " reports; checkpointed at line " + last.endLine + " of dump file " + last.file + ".");
+    }
+
+    /**
+     * Lines of one dump file read together.
+     */
+    private static class Batch {
+
+        private final int file;
+        private final long firstLine;
+        private final List<byte[]> lines = new ArrayList<>();
+        private long sequence;
+        private long endOffset;
+        private long endLine;
+
+        private Batch(final int file, final long firstLine) {
+            this.file = file;
+            this.firstLine = firstLine;
+        }
+
+        private void end(final long endOffset, final long endLine) {
+            this.endOffset = endOffset;
+            this.endLine = endLine;
+        }
+    }
+}
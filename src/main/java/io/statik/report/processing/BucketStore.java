@@ -0,0 +1,149 @@
+package io.statik.report.processing;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import io.statik.report.Configuration;
+import io.statik.report.QueuedReport;
+import io.statik.report.ReportServer;
+import io.statik.report.Request;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.json.JSONObject;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Stores reports by appending them to bucket documents in the data collection, one open bucket per hour per shard.
+ * <p/>
+ * A bucket holds at most <code>config.database.buckets.max_reports</code> reports and
+ * <code>config.database.buckets.max_bytes</code> of encoded reports, keeping it under MongoDB's 16 MB document limit,
+ * along with their count, size and the minimum and maximum of the numeric report fields. New buckets are created with
+ * padding that is immediately removed, so the record is allocated at full size and does not move as reports are
+ * appended.
+ * <p/>
+ * Appending is not idempotent: if the write succeeds but its acknowledgement is lost, the job is retried and the
+ * report is appended again. Readers of bucketed data should expect the occasional duplicate.
+ */
+public class BucketStore implements ReportStore {
+
+    private static final long HOUR = 3600000L;
+    private static final String[] SUMMARY_FIELDS = {"system.cores", "system.memory", "minecraft.players"};
+    private final ReportServer rs;
+    private final int shards;
+    private final int maxReports;
+    private final int maxBytes;
+    private final int preallocateBytes;
+
+    public BucketStore(final ReportServer rs) {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        this.shards = Math.max(1, c.getInt("config.database.buckets.shards", 16));
+        this.maxReports = Math.max(1, c.getInt("config.database.buckets.max_reports", 100));
+        this.maxBytes = Math.max(1, Math.min(16777216 - 65536, c.getInt("config.database.buckets.max_bytes", 8388608)));
+        this.preallocateBytes = Math.max(0, c.getInt("config.database.buckets.preallocate_bytes", 262144));
+        this.rs.getMongoDB().getCollection("data").createIndex(
+            new BasicDBObject("hour", 1).append("shard", 1).append("count", 1),
+            new BasicDBObject("background", true)
+        );
+    }
+
+    /**
+     * Inserts an empty, pre-allocated bucket.
+     *
+     * @param dbc   Data collection
+     * @param hour  Hour the bucket covers, in hours since the epoch
+     * @param shard Shard the bucket belongs to
+     */
+    private void createBucket(final DBCollection dbc, final long hour, final int shard) {
+        final ObjectId id = new ObjectId();
+        final BasicDBObject bucket = new BasicDBObject("_id", id)
+            .append("hour", hour)
+            .append("shard", shard)
+            .append("start", new Date(hour * BucketStore.HOUR))
+            .append("count", 0)
+            .append("size", 0)
+            .append("reports", new Object[0]);
+        if (this.preallocateBytes > 0) bucket.append("padding", new byte[this.preallocateBytes]);
+        dbc.insert(bucket, this.getWriteConcern(dbc));
+        if (this.preallocateBytes > 0) {
+            dbc.update(new BasicDBObject("_id", id), new BasicDBObject("$unset", new BasicDBObject("padding", "")), false, false, this.getWriteConcern(dbc));
+        }
+    }
+
+    private Object getSummaryValue(final Request r, final String path) {
+        final String[] parts = path.split("\\.");
+        final JSONObject parent = r.getJSONObject(parts[0]);
+        return parent == null ? null : parent.opt(parts[1]);
+    }
+
+    /**
+     * Bucket updates need an acknowledged write to know whether a bucket with room was found.
+     *
+     * @param dbc Data collection
+     * @return The collection's write concern, or {@link com.mongodb.WriteConcern#ACKNOWLEDGED} if it is weaker
+     */
+    private WriteConcern getWriteConcern(final DBCollection dbc) {
+        return dbc.getWriteConcern().callGetLastError() ? dbc.getWriteConcern() : WriteConcern.ACKNOWLEDGED;
+    }
+
+    private int getShard(final UUID serverUUID) {
+        if (serverUUID == null) return 0;
+        final int hash = serverUUID.hashCode() * 0x9e3779b9;
+        return (hash >>> 1) % this.shards;
+    }
+
+    @Override
+    public void store(final QueuedReport qr) throws MongoException {
+        final DBCollection dbc = this.rs.getMongoDB().getCollection("data");
+        final long received = qr.getReceived() > 0L ? qr.getReceived() : System.currentTimeMillis();
+        final long hour = received / BucketStore.HOUR;
+        final int shard = this.getShard(qr.getServerUUID());
+        final DBObject report = qr.getReport().createMongoVersion();
+        report.put("received", new Date(received));
+        final BasicDBObject min = new BasicDBObject();
+        final BasicDBObject max = new BasicDBObject();
+        for (final String field : BucketStore.SUMMARY_FIELDS) {
+            final Object value = this.getSummaryValue(qr.getReport(), field);
+            if (!(value instanceof Number)) continue;
+            min.append("min." + field.replace('.', '_'), value);
+            max.append("max." + field.replace('.', '_'), value);
+        }
+        final int size = new BasicBSONEncoder().encode(report).length;
+        if (size > this.maxBytes) throw new MongoException("Report of " + size + " bytes cannot fit in a bucket");
+        final BasicDBObject query = new BasicDBObject("hour", hour)
+            .append("shard", shard)
+            .append("count", new BasicDBObject("$lt", this.maxReports))
+            .append("size", new BasicDBObject("$lte", this.maxBytes - size));
+        final BasicDBObject update = new BasicDBObject("$push", new BasicDBObject("reports", report))
+            .append("$inc", new BasicDBObject("count", 1).append("size", size));
+        if (!min.isEmpty()) update.append("$min", min).append("$max", max);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            final WriteResult wr = dbc.update(query, update, false, false, this.getWriteConcern(dbc));
+            if (wr.getN() > 0) return;
+            this.createBucket(dbc, hour, shard);
+        }
+        throw new MongoException("Could not find or create a bucket for hour " + hour + ", shard " + shard);
+    }
+
+    @Override
+    public Map<Integer, MongoException> storeAll(final List<QueuedReport> reports) throws MongoException {
+        // each report lands in whichever bucket has room, so they are appended one at a time
+        final Map<Integer, MongoException> failures = new HashMap<>();
+        for (int i = 0; i < reports.size(); i++) {
+            try {
+                this.store(reports.get(i));
+            } catch (final MongoException ex) {
+                failures.put(i, ex);
+            }
+        }
+        return failures;
+    }
+}
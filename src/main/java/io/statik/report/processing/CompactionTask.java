@@ -0,0 +1,372 @@
+package io.statik.report.processing;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import io.statik.report.Configuration;
+import io.statik.report.ReportServer;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Task that ages raw reports out of the data collection.
+ * <p/>
+ * Raw reports older than <code>config.retention.raw_max_age_hours</code> are rolled into hourly summary documents,
+ * and hourly summaries older than <code>config.retention.hourly_max_age_days</code> are rolled into daily ones. Each
+ * tier is compacted in batches of <code>config.retention.batch_size</code> documents, with a pause between batches so
+ * the compaction does not starve inserts. Progress is checkpointed after every batch, so a restarted task resumes
+ * where it left off; a crash between summarizing a batch and deleting it may count that batch twice. Only the
+ * documents actually summarized are deleted. Documents that appear below a checkpoint later, such as backfilled
+ * archives, are summarized by their own timestamp in a separate pass.
+ * <p/>
+ * Only one node compacts at a time: the task takes a lease in the checkpoints collection, renewed before each batch
+ * and expiring after <code>config.retention.lease_seconds</code>, and skips the run if another node holds it.
+ */
+public class CompactionTask implements Runnable {
+
+    private static final long HOUR = 3600000L;
+    private static final String LEASE = "compaction_lease";
+    private final ReportServer rs;
+    private final long rawMaxAge;
+    private final long hourlyMaxAge;
+    private final int batchSize;
+    private final long batchDelay;
+    private final long leaseMillis;
+
+    public CompactionTask(final ReportServer rs) {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        this.rawMaxAge = c.getInt("config.retention.raw_max_age_hours", 168) * CompactionTask.HOUR;
+        this.hourlyMaxAge = c.getInt("config.retention.hourly_max_age_days", 90) * 24L * CompactionTask.HOUR;
+        this.batchSize = Math.max(1, c.getInt("config.retention.batch_size", 1000));
+        this.batchDelay = Math.max(0, c.getInt("config.retention.batch_delay_ms", 200));
+        this.leaseMillis = Math.max(1, c.getInt("config.retention.lease_seconds", 300)) * 1000L;
+    }
+
+    /**
+     * Creates the lowest ObjectId with the given creation time, for range queries on <code>_id</code>.
+     *
+     * @param millis Creation time
+     * @return ObjectId with the time's seconds and zeroes for the rest
+     */
+    private static ObjectId minId(final long millis) {
+        final int seconds = (int) (millis / 1000L);
+        return new ObjectId(new byte[]{(byte) (seconds >>> 24), (byte) (seconds >>> 16), (byte) (seconds >>> 8), (byte) seconds, 0, 0, 0, 0, 0, 0, 0, 0});
+    }
+
+    /**
+     * Makes a value usable as a field name.
+     *
+     * @param value Value to use as a field name
+     * @return Field name without dots or leading dollar signs
+     */
+    private static String fieldName(final Object value) {
+        final String name = String.valueOf(value).replace('.', '_');
+        return name.startsWith("$") ? "_" + name.substring(1) : name;
+    }
+
+    private static void increment(final Map<String, Double> summary, final String field, final double amount) {
+        final Double current = summary.get(field);
+        summary.put(field, current == null ? amount : current + amount);
+    }
+
+    private static Object get(final DBObject dbo, final String path) {
+        Object o = dbo;
+        for (final String part : path.split("\\.")) {
+            if (!(o instanceof DBObject)) return null;
+            o = ((DBObject) o).get(part);
+        }
+        return o;
+    }
+
+    /**
+     * Adds a raw report to an hourly summary. A sampled report stands for one over its sample rate of the reports
+     * sent, so every count and sum is weighted by that; <code>sampled</code> keeps the number of reports stored, and
+     * <code>sample_rates</code> how many were stored at each rate.
+     *
+     * @param summary Summary fields to increment
+     * @param report  Raw report
+     */
+    private static void summarize(final Map<String, Double> summary, final DBObject report) {
+        final Object rate = report.get("sample_rate");
+        final double weight = rate instanceof Number && ((Number) rate).doubleValue() > 0D ? 1D / ((Number) rate).doubleValue() : 1D;
+        CompactionTask.increment(summary, "count", weight);
+        CompactionTask.increment(summary, "sampled", 1D);
+        CompactionTask.increment(summary, "sample_rates." + CompactionTask.fieldName(rate instanceof Number ? rate : 1D), 1D);
+        for (final String field : new String[]{"system.cores", "system.memory", "minecraft.players"}) {
+            final Object value = CompactionTask.get(report, field);
+            if (value instanceof Number) {
+                CompactionTask.increment(summary, "sum." + field.replace('.', '_'), ((Number) value).doubleValue() * weight);
+            }
+        }
+        final String[][] dimensions = {
+            {"versions", "minecraft.version"},
+            {"mods", "minecraft.mod.name"},
+            {"online_mode", "minecraft.online_mode"},
+            {"java", "system.java"},
+            {"os", "system.os.name"}
+        };
+        for (final String[] dimension : dimensions) {
+            final Object value = CompactionTask.get(report, dimension[1]);
+            if (value != null) CompactionTask.increment(summary, dimension[0] + "." + CompactionTask.fieldName(value), weight);
+        }
+        final Object plugins = report.get("plugins");
+        if (!(plugins instanceof BasicDBList)) return;
+        for (final Object plugin : (BasicDBList) plugins) {
+            if (!(plugin instanceof DBObject)) continue;
+            final Object name = ((DBObject) plugin).get("name");
+            if (name != null) CompactionTask.increment(summary, "plugins." + CompactionTask.fieldName(name), weight);
+        }
+    }
+
+    /**
+     * Flattens the numeric leaves of a summary document into dotted paths.
+     *
+     * @param prefix  Path of the document being flattened
+     * @param dbo     Summary document
+     * @param summary Map to add the leaves to
+     */
+    private static void flatten(final String prefix, final DBObject dbo, final Map<String, Double> summary) {
+        for (final String key : dbo.keySet()) {
+            if (prefix.isEmpty() && key.equals("_id")) continue;
+            final Object value = dbo.get(key);
+            if (value instanceof Number) CompactionTask.increment(summary, prefix + key, ((Number) value).doubleValue());
+            else if (value instanceof DBObject) CompactionTask.flatten(prefix + key + ".", (DBObject) value, summary);
+        }
+    }
+
+    private Object getCheckpoint(final DBCollection checkpoints, final String tier) {
+        final DBObject dbo = checkpoints.findOne(new BasicDBObject("_id", tier));
+        return dbo == null ? null : dbo.get("last");
+    }
+
+    private void setCheckpoint(final DBCollection checkpoints, final String tier, final Object last) {
+        checkpoints.update(
+            new BasicDBObject("_id", tier),
+            new BasicDBObject("_id", tier).append("last", last).append("updated", new Date()),
+            true,
+            false
+        );
+    }
+
+    /**
+     * Takes or renews the compaction lease for this node.
+     *
+     * @param checkpoints Checkpoints collection
+     * @return true if this node holds the lease
+     */
+    private boolean acquireLease(final DBCollection checkpoints) {
+        final String owner = this.rs.getNodeId();
+        final Date now = new Date();
+        final BasicDBList free = new BasicDBList();
+        free.add(new BasicDBObject("owner", owner));
+        free.add(new BasicDBObject("expires", new BasicDBObject("$lt", now)));
+        try {
+            return checkpoints.findAndModify(
+                new BasicDBObject("_id", CompactionTask.LEASE).append("$or", free),
+                null,
+                null,
+                false,
+                new BasicDBObject("$set", new BasicDBObject("owner", owner).append("expires", new Date(now.getTime() + this.leaseMillis))),
+                true,
+                true
+            ) != null;
+        } catch (final MongoException ex) {
+            if (ex.getCode() == 11000) return false; // held by another node, so the upsert clashed with it
+            throw ex;
+        }
+    }
+
+    private void releaseLease(final DBCollection checkpoints) {
+        checkpoints.update(
+            new BasicDBObject("_id", CompactionTask.LEASE).append("owner", this.rs.getNodeId()),
+            new BasicDBObject("$set", new BasicDBObject("expires", new Date()))
+        );
+    }
+
+    private void flush(final DBCollection dbc, final Map<Long, Map<String, Double>> summaries) {
+        for (final Map.Entry<Long, Map<String, Double>> entry : summaries.entrySet()) {
+            dbc.update(
+                new BasicDBObject("_id", entry.getKey()),
+                new BasicDBObject("$inc", new BasicDBObject(entry.getValue())),
+                true,
+                false
+            );
+        }
+    }
+
+    /**
+     * Fills in the plugin list of a report stored with only its plugin set, so it is summarized like any other.
+     *
+     * @param report Raw report
+     * @return The same report
+     * @throws MongoException If the plugin set cannot be read
+     */
+    private DBObject resolvePlugins(final DBObject report) throws MongoException {
+        final PluginSets pluginSets = this.rs.getPluginSets();
+        if (pluginSets == null || report.containsField("plugins") || !(report.get("plugin_set") instanceof Long)) return report;
+        final BasicDBList plugins = pluginSets.getList((Long) report.get("plugin_set"));
+        if (plugins != null) report.put("plugins", plugins);
+        return report;
+    }
+
+    /**
+     * Compacts one batch of raw reports into hourly summaries.
+     *
+     * @param backlog Whether to compact reports below the checkpoint instead of those past it
+     * @return true if a full batch was compacted and more may remain
+     */
+    private boolean compactRaw(final boolean backlog) {
+        final DBCollection data = this.rs.getMongoDB().getCollection("data");
+        final DBCollection hourly = this.rs.getMongoDB().getCollection("hourly");
+        final DBCollection checkpoints = this.rs.getMongoDB().getCollection("checkpoints");
+        final Object last = this.getCheckpoint(checkpoints, "raw");
+        final BasicDBObject range = new BasicDBObject();
+        if (backlog) {
+            if (last == null) return false;
+            range.append("$lte", last);
+        } else {
+            range.append("$lt", CompactionTask.minId(System.currentTimeMillis() - this.rawMaxAge));
+            if (last != null) range.append("$gt", last);
+        }
+        final Map<Long, Map<String, Double>> summaries = new HashMap<>();
+        final List<Object> ids = new ArrayList<>();
+        Object newLast = null;
+        try (final DBCursor cursor = data.find(new BasicDBObject("_id", range)).sort(new BasicDBObject("_id", 1)).limit(this.batchSize)) {
+            for (final DBObject dbo : cursor) {
+                newLast = dbo.get("_id");
+                ids.add(newLast);
+                if (!(newLast instanceof ObjectId)) {
+                    this.rs.getLogger().warning("Compacting raw report " + newLast + " without a timestamp; it is dropped.");
+                    continue;
+                }
+                final long created = ((ObjectId) newLast).getDate().getTime();
+                final Object reports = dbo.get("reports");
+                if (reports instanceof BasicDBList) {
+                    // a bucket from the bucketed layout
+                    final long hour = dbo.get("hour") instanceof Number ? ((Number) dbo.get("hour")).longValue() : created / CompactionTask.HOUR;
+                    for (final Object report : (BasicDBList) reports) {
+                        if (report instanceof DBObject) CompactionTask.summarize(this.getSummary(summaries, hour), this.resolvePlugins((DBObject) report));
+                    }
+                } else CompactionTask.summarize(this.getSummary(summaries, created / CompactionTask.HOUR), this.resolvePlugins(dbo));
+            }
+        }
+        if (newLast == null) return false;
+        this.flush(hourly, summaries);
+        if (!backlog) this.setCheckpoint(checkpoints, "raw", newLast);
+        data.remove(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+        return ids.size() >= this.batchSize;
+    }
+
+    /**
+     * Compacts one batch of hourly summaries into daily summaries.
+     *
+     * @param backlog Whether to compact summaries below the checkpoint instead of those past it
+     * @return true if a full batch was compacted and more may remain
+     */
+    private boolean compactHourly(final boolean backlog) {
+        final DBCollection hourly = this.rs.getMongoDB().getCollection("hourly");
+        final DBCollection daily = this.rs.getMongoDB().getCollection("daily");
+        final DBCollection checkpoints = this.rs.getMongoDB().getCollection("checkpoints");
+        final Object last = this.getCheckpoint(checkpoints, "hourly");
+        final BasicDBObject range = new BasicDBObject();
+        if (backlog) {
+            if (last == null) return false;
+            range.append("$lte", last);
+        } else {
+            range.append("$lt", (System.currentTimeMillis() - this.hourlyMaxAge) / CompactionTask.HOUR);
+            if (last != null) range.append("$gt", last);
+        }
+        final Map<Long, Map<String, Double>> summaries = new HashMap<>();
+        final List<Object> ids = new ArrayList<>();
+        Long newLast = null;
+        try (final DBCursor cursor = hourly.find(new BasicDBObject("_id", range)).sort(new BasicDBObject("_id", 1)).limit(this.batchSize)) {
+            for (final DBObject dbo : cursor) {
+                newLast = ((Number) dbo.get("_id")).longValue();
+                ids.add(dbo.get("_id"));
+                CompactionTask.flatten("", dbo, this.getSummary(summaries, newLast / 24L));
+            }
+        }
+        if (newLast == null) return false;
+        this.flush(daily, summaries);
+        if (!backlog) this.setCheckpoint(checkpoints, "hourly", newLast);
+        hourly.remove(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+        return ids.size() >= this.batchSize;
+    }
+
+    private Map<String, Double> getSummary(final Map<Long, Map<String, Double>> summaries, final long key) {
+        Map<String, Double> summary = summaries.get(key);
+        if (summary == null) summaries.put(key, summary = new HashMap<>());
+        return summary;
+    }
+
+    /**
+     * Pauses between batches.
+     *
+     * @return false if the thread was interrupted
+     */
+    private boolean pause() {
+        try {
+            Thread.sleep(this.batchDelay);
+            return true;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Runs a compaction pass in batches until it is done, renewing the lease before each batch.
+     *
+     * @param checkpoints Checkpoints collection
+     * @param raw         Whether to compact raw reports rather than hourly summaries
+     * @param backlog     Whether to compact below the checkpoint
+     * @return false if the lease was lost or the thread was interrupted
+     */
+    private boolean compact(final DBCollection checkpoints, final boolean raw, final boolean backlog) {
+        while (true) {
+            if (!this.acquireLease(checkpoints)) {
+                this.rs.getLogger().warning("Lost the compaction lease; another node is compacting.");
+                return false;
+            }
+            if (!(raw ? this.compactRaw(backlog) : this.compactHourly(backlog))) return true;
+            if (!this.pause()) return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        for (final String key : new String[]{"data", "hourly", "daily", "checkpoints"}) {
+            if (this.rs.getMongoDB().getCollection(key) != null) continue;
+            this.rs.getLogger().warning("Cannot compact; the " + key + " collection does not exist in the config.");
+            return;
+        }
+        final DBCollection checkpoints = this.rs.getMongoDB().getCollection("checkpoints");
+        try {
+            if (!this.acquireLease(checkpoints)) return; // another node is compacting
+            try {
+                // summaries from the raw backlog may land below the hourly checkpoint, so that backlog goes last
+                if (this.compact(checkpoints, true, false) && this.compact(checkpoints, true, true) && this.compact(checkpoints, false, false)) {
+                    this.compact(checkpoints, false, true);
+                }
+            } finally {
+                this.releaseLease(checkpoints);
+            }
+        } catch (final MongoException ex) {
+            this.rs.getLogger().warning("Compaction failed; it will resume from its checkpoint on the next run:");
+            this.rs.getLogger().log(Level.WARNING, ex.getMessage(), ex);
+        } catch (final RuntimeException ex) {
+            // an escaped exception would cancel the scheduled task for good
+            this.rs.getLogger().log(Level.SEVERE, "An unexpected exception escaped compaction: " + ex.getMessage(), ex);
+        }
+    }
+}
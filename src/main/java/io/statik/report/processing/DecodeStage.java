@@ -0,0 +1,39 @@
+package io.statik.report.processing;
+
+import io.statik.report.QueuedReport;
+import io.statik.report.ReportServer;
+import io.statik.report.TraceContext;
+
+import java.util.List;
+
+/**
+ * Pipeline stage that decodes reserved jobs into reports, completing those that duplicate a report stored within the
+ * deduplication window. Duplicates are detected without touching MongoDB.
+ */
+public class DecodeStage implements PipelineStage {
+
+    private final ReportServer rs;
+
+    public DecodeStage(final ReportServer rs) {
+        this.rs = rs;
+    }
+
+    @Override
+    public void process(final List<ProcessingJob> jobs) {
+        final Deduplicator dedup = this.rs.getDeduplicator();
+        for (final ProcessingJob job : jobs) {
+            try {
+                final QueuedReport qr = QueuedReport.fromBytes(job.getJob().getData()); // we should be passed a JSONObject in String form
+                final TraceContext trace = qr.getTrace();
+                if (trace != null) trace.mark("reserved");
+                job.setReport(qr);
+                if (dedup == null || qr.getServerUUID() == null) continue;
+                final long key = Deduplicator.key(qr.getServerUUID(), qr.getReport().toString());
+                job.setDedupKey(key);
+                if (dedup.isDuplicate(key)) job.complete();
+            } catch (final RuntimeException ex) {
+                job.fail(ex);
+            }
+        }
+    }
+}
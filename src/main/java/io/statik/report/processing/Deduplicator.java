@@ -0,0 +1,258 @@
+package io.statik.report.processing;
+
+import io.statik.report.Configuration;
+import io.statik.report.ReportServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Sliding-window set of recently stored reports, used to drop reports that clients retried after a timeout.
+ * <p/>
+ * Reports are keyed by a 64-bit hash of the server UUID and the sanitized report. The window is split into
+ * generations of equal length, each a fixed-capacity open-addressed table; the oldest generation is dropped when the
+ * window slides or when the newest one fills, so memory stays bounded by <code>config.dedup.max_entries</code>.
+ * <p/>
+ * Reports carry no timestamp, so a server's next scheduled report is often byte-identical to its last one. The window
+ * must therefore stay well under the 30 minute reporting interval; retries arrive within seconds, so it is capped at
+ * {@link #MAX_WINDOW_SECONDS}.
+ */
+public class Deduplicator {
+
+    /**
+     * Longest window allowed, well under the reporting interval.
+     */
+    private static final int MAX_WINDOW_SECONDS = 600;
+    private static final int FILE_VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final ReportServer rs;
+    private final long generationMillis;
+    private final int generationCapacity;
+    private final long[][] tables;
+    private final int[] sizes;
+    private final long[] starts;
+    private final File persistFile;
+    private int newest = 0;
+
+    /**
+     * Creates a new Deduplicator, restoring the persisted window if one is configured and present.
+     *
+     * @param rs ReportServer this is running from
+     */
+    public Deduplicator(final ReportServer rs) {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        final int generations = Math.max(2, c.getInt("config.dedup.generations", 6));
+        int window = c.getInt("config.dedup.window_seconds", 120);
+        if (window > Deduplicator.MAX_WINDOW_SECONDS) {
+            this.rs.getLogger().warning("config.dedup.window_seconds is over " + Deduplicator.MAX_WINDOW_SECONDS + "; scheduled reports would be dropped as retries. Using " + Deduplicator.MAX_WINDOW_SECONDS + ".");
+            window = Deduplicator.MAX_WINDOW_SECONDS;
+        }
+        this.generationMillis = Math.max(1L, window * 1000L / generations);
+        // tables are kept at most half full so probes stay short
+        this.generationCapacity = Math.max(16, c.getInt("config.dedup.max_entries", 1000000) / generations);
+        this.tables = new long[generations][Integer.highestOneBit(this.generationCapacity * 2 - 1) << 1];
+        this.sizes = new int[generations];
+        this.starts = new long[generations];
+        this.starts[0] = System.currentTimeMillis();
+        final String file = c.getString("config.dedup.persist_file", null);
+        this.persistFile = file == null || file.isEmpty() ? null : new File(file);
+        if (this.persistFile != null && this.persistFile.isFile()) this.load();
+    }
+
+    /**
+     * MurmurHash3's 64-bit finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Creates the key for a report.
+     *
+     * @param serverUUID UUID of the server the report is from
+     * @param report     Sanitized report in String form
+     * @return Non-zero 64-bit key
+     */
+    public static long key(final UUID serverUUID, final String report) {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for (final byte b : report.getBytes(Deduplicator.UTF8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h = Deduplicator.mix(h ^ Deduplicator.mix(serverUUID.getMostSignificantBits()) ^ Long.rotateLeft(Deduplicator.mix(serverUUID.getLeastSignificantBits()), 32));
+        return h == 0L ? 1L : h; // 0 marks an empty slot
+    }
+
+    private static boolean contains(final long[] table, final long key) {
+        final int mask = table.length - 1;
+        for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+            if (table[i] == key) return true;
+            if (table[i] == 0L) return false;
+        }
+    }
+
+    private static void insert(final long[] table, final long key) {
+        final int mask = table.length - 1;
+        int i = (int) key & mask;
+        while (table[i] != 0L && table[i] != key) i = (i + 1) & mask;
+        table[i] = key;
+    }
+
+    /**
+     * Records a stored report's key in the newest generation.
+     *
+     * @param key Key from {@link #key(java.util.UUID, String)}
+     */
+    public synchronized void add(final long key) {
+        this.slide(System.currentTimeMillis());
+        if (this.sizes[this.newest] >= this.generationCapacity) this.rotate(System.currentTimeMillis());
+        if (Deduplicator.contains(this.tables[this.newest], key)) return;
+        Deduplicator.insert(this.tables[this.newest], key);
+        this.sizes[this.newest]++;
+    }
+
+    /**
+     * Checks if a report with the given key was stored within the window.
+     *
+     * @param key Key from {@link #key(java.util.UUID, String)}
+     * @return true if the report is a duplicate
+     */
+    public synchronized boolean isDuplicate(final long key) {
+        this.slide(System.currentTimeMillis());
+        for (int i = 0; i < this.tables.length; i++) {
+            if (this.sizes[i] > 0 && Deduplicator.contains(this.tables[i], key)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the persisted window, skipping generations that have since expired.
+     */
+    private void load() {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.persistFile)))) {
+            if (in.readInt() != Deduplicator.FILE_VERSION) return;
+            final int generations = in.readInt();
+            final long windowStart = System.currentTimeMillis() - this.generationMillis * this.tables.length;
+            boolean first = true;
+            for (int g = 0; g < generations; g++) {
+                final long start = in.readLong();
+                final int size = in.readInt();
+                final boolean keep = start >= windowStart;
+                if (keep && first) this.starts[this.newest] = start;
+                else if (keep) this.rotate(start);
+                first &= !keep;
+                for (int i = 0; i < size; i++) {
+                    final long key = in.readLong();
+                    if (!keep || this.sizes[this.newest] >= this.generationCapacity) continue;
+                    Deduplicator.insert(this.tables[this.newest], key);
+                    this.sizes[this.newest]++;
+                }
+            }
+        } catch (final IOException ex) {
+            this.rs.getLogger().log(Level.WARNING, "Could not read the deduplication window: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Starts persisting the window every <code>config.dedup.persist_interval_seconds</code> and at shutdown, if a
+     * persistence file is configured.
+     */
+    public void startPersisting() {
+        if (this.persistFile == null) return;
+        final int interval = Math.max(1, this.rs.getConfiguration().getInt("config.dedup.persist_interval_seconds", 60));
+        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "Deduplicator persistence");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ses.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Deduplicator.this.persist();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Deduplicator.this.persist();
+            }
+        }, "Deduplicator shutdown"));
+    }
+
+    /**
+     * Writes the current window to the configured file, if any. The file is replaced atomically.
+     */
+    public void persist() {
+        if (this.persistFile == null) return;
+        final File temp = new File(this.persistFile.getPath() + ".tmp");
+        try {
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                synchronized (this) {
+                    out.writeInt(Deduplicator.FILE_VERSION);
+                    out.writeInt(this.tables.length);
+                    // oldest generation first, so reloading refills generations in order
+                    for (int g = 1; g <= this.tables.length; g++) {
+                        final int index = (this.newest + g) % this.tables.length;
+                        out.writeLong(this.starts[index]);
+                        out.writeInt(this.sizes[index]);
+                        for (final long key : this.tables[index]) {
+                            if (key != 0L) out.writeLong(key);
+                        }
+                    }
+                }
+            }
+            Files.move(temp.toPath(), this.persistFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ex) {
+            this.rs.getLogger().log(Level.WARNING, "Could not persist the deduplication window: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Starts a new generation, dropping the oldest.
+     *
+     * @param now Start time of the new generation
+     */
+    private void rotate(final long now) {
+        this.newest = (this.newest + 1) % this.tables.length;
+        if (this.sizes[this.newest] > 0) Arrays.fill(this.tables[this.newest], 0L);
+        this.sizes[this.newest] = 0;
+        this.starts[this.newest] = now;
+    }
+
+    /**
+     * Rotates generations until the newest one covers the current time.
+     *
+     * @param now Current time in milliseconds
+     */
+    private void slide(final long now) {
+        for (int i = 0; i < this.tables.length && now - this.starts[this.newest] >= this.generationMillis; i++) {
+            this.rotate(this.starts[this.newest] + this.generationMillis);
+        }
+        if (now - this.starts[this.newest] >= this.generationMillis) this.rotate(now);
+    }
+}
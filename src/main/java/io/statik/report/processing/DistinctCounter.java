@@ -0,0 +1,185 @@
+package io.statik.report.processing;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import io.statik.report.QueuedReport;
+import io.statik.report.Request;
+import io.statik.report.ReportServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Maintains {@link io.statik.report.processing.HyperLogLog}s of distinct server UUIDs per dimension value per day.
+ * <p/>
+ * Dimensions are <code>plugin</code>, <code>minecraft_version</code>, <code>mod</code> and <code>java</code>. Like
+ * {@link io.statik.report.processing.SketchAggregator}, each node flushes into its own documents every
+ * <code>config.distinct.flush_seconds</code>, and queries union the counters of every node over the requested days.
+ * <p/>
+ * Sampled reports are counted separately per sample rate. Servers are sampled on a hash independent of the one the
+ * counters use, so each rate's union is a uniform sample of the servers seen while that rate was in force, and its
+ * estimate scales up by one over the rate. A query returns the largest scaled estimate, which undercounts servers seen
+ * only while another rate was in force.
+ */
+public class DistinctCounter implements Runnable {
+
+    private static final long DAY = 86400000L;
+    private final ReportServer rs;
+    private Map<Key, HyperLogLog> pending = new HashMap<>();
+
+    public DistinctCounter(final ReportServer rs) {
+        this.rs = rs;
+    }
+
+    /**
+     * Estimates how many distinct servers reported a dimension value over a range of days.
+     *
+     * @param dbc       Distinct counts collection
+     * @param dimension Dimension, such as <code>plugin</code>
+     * @param value     Dimension value, such as a plugin name
+     * @param fromDay   First day, in days since the epoch (inclusive)
+     * @param untilDay  Last day, in days since the epoch (exclusive)
+     * @return Estimated distinct server count
+     */
+    public static long count(final DBCollection dbc, final String dimension, final String value, final long fromDay, final long untilDay) {
+        final Map<Double, HyperLogLog> unions = new HashMap<>();
+        final BasicDBObject query = new BasicDBObject("dimension", dimension)
+            .append("value", value)
+            .append("day", new BasicDBObject("$gte", fromDay).append("$lt", untilDay));
+        for (final DBObject dbo : dbc.find(query, new BasicDBObject("hll", 1).append("sample_rate", 1))) {
+            final Object hll = dbo.get("hll");
+            if (!(hll instanceof byte[])) continue;
+            final double rate = dbo.get("sample_rate") instanceof Number ? ((Number) dbo.get("sample_rate")).doubleValue() : 1D;
+            HyperLogLog union = unions.get(rate);
+            if (union == null) unions.put(rate, union = new HyperLogLog());
+            union.merge(HyperLogLog.fromBytes((byte[]) hll));
+        }
+        long estimate = 0L;
+        for (final Map.Entry<Double, HyperLogLog> entry : unions.entrySet()) {
+            final double rate = entry.getKey() > 0D ? entry.getKey() : 1D;
+            estimate = Math.max(estimate, Math.round(entry.getValue().estimate() / rate));
+        }
+        return estimate;
+    }
+
+    private void add(final String dimension, final String value, final long day, final double rate, final long hash) {
+        if (value == null || value.isEmpty()) return;
+        final Key key = new Key(dimension, value, day, rate);
+        HyperLogLog hll = this.pending.get(key);
+        if (hll == null) this.pending.put(key, hll = new HyperLogLog());
+        hll.add(hash);
+    }
+
+    /**
+     * Writes pending counters, unioning each with the node's stored counter for the same dimension value and day.
+     */
+    public void flush() {
+        final Map<Key, HyperLogLog> flushing;
+        synchronized (this) {
+            if (this.pending.isEmpty()) return;
+            flushing = this.pending;
+            this.pending = new HashMap<>();
+        }
+        final DBCollection dbc = this.rs.getMongoDB().getCollection("distinct");
+        final String node = this.rs.getNodeId();
+        for (final Map.Entry<Key, HyperLogLog> entry : flushing.entrySet()) {
+            final Key key = entry.getKey();
+            final BasicDBObject id = new BasicDBObject("node", node)
+                .append("dimension", key.dimension)
+                .append("value", key.value)
+                .append("day", key.day);
+            if (key.rate < 1D) id.append("sample_rate", key.rate);
+            try {
+                final DBObject existing = dbc.findOne(new BasicDBObject("_id", id));
+                final HyperLogLog stored = existing != null && existing.get("hll") instanceof byte[]
+                    ? HyperLogLog.fromBytes((byte[]) existing.get("hll"))
+                    : new HyperLogLog();
+                stored.merge(entry.getValue());
+                dbc.update(
+                    new BasicDBObject("_id", id),
+                    new BasicDBObject("_id", id)
+                        .append("dimension", key.dimension)
+                        .append("value", key.value)
+                        .append("day", key.day)
+                        .append("sample_rate", key.rate)
+                        .append("hll", stored.toBytes()),
+                    true,
+                    false
+                );
+            } catch (final MongoException ex) {
+                this.rs.getLogger().log(Level.WARNING, "Could not flush a distinct counter: " + ex.getMessage(), ex);
+                synchronized (this) {
+                    final HyperLogLog current = this.pending.get(key);
+                    if (current == null) this.pending.put(key, entry.getValue());
+                    else current.merge(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the dimension values of a stored report against its server UUID.
+     *
+     * @param qr Stored report
+     */
+    public void record(final QueuedReport qr) {
+        if (qr.getServerUUID() == null) return;
+        final long hash = HyperLogLog.hash(qr.getServerUUID());
+        final long day = (qr.getReceived() > 0L ? qr.getReceived() : System.currentTimeMillis()) / DistinctCounter.DAY;
+        final Request r = qr.getReport();
+        final double rate = r.getConfigRoot().optDouble("sample_rate", 1D);
+        synchronized (this) {
+            this.add("minecraft_version", r.getString("minecraft.version", null), day, rate, hash);
+            this.add("mod", r.getString("minecraft.mod.name", null), day, rate, hash);
+            this.add("java", r.getString("system.java", null), day, rate, hash);
+            final JSONArray plugins = r.getJSONArray("plugins");
+            if (plugins == null) return;
+            for (int i = 0; i < plugins.length(); i++) {
+                final JSONObject plugin = plugins.optJSONObject(i);
+                if (plugin != null) this.add("plugin", plugin.optString("name", null), day, rate, hash);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.flush();
+        } catch (final RuntimeException ex) {
+            // an escaped exception would cancel the scheduled flush for good
+            this.rs.getLogger().log(Level.SEVERE, "An unexpected exception escaped flushing the distinct counts: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static class Key {
+
+        private final String dimension;
+        private final String value;
+        private final long day;
+        private final double rate;
+
+        private Key(final String dimension, final String value, final long day, final double rate) {
+            this.dimension = dimension;
+            this.value = value;
+            this.day = day;
+            this.rate = rate;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            return this.day == other.day && this.rate == other.rate && this.dimension.equals(other.dimension) && this.value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.dimension.hashCode() * 31 + this.value.hashCode()) * 31 + (int) (this.day ^ (this.day >>> 32));
+        }
+    }
+}
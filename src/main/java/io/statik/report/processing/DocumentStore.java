@@ -0,0 +1,54 @@
+package io.statik.report.processing;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.MongoException;
+import io.statik.report.QueuedReport;
+import io.statik.report.ReportServer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores each report as its own document in the data collection.
+ */
+public class DocumentStore implements ReportStore {
+
+    private final ReportServer rs;
+
+    public DocumentStore(final ReportServer rs) {
+        this.rs = rs;
+    }
+
+    @Override
+    public void store(final QueuedReport qr) throws MongoException {
+        final DB db = this.rs.getMongoDB().getDB();
+        db.requestStart();
+        try {
+            db.requestEnsureConnection();
+            this.rs.getMongoDB().getCollection("data").insert(qr.getReport().createMongoVersion());
+        } finally {
+            db.requestDone();
+        }
+    }
+
+    @Override
+    public Map<Integer, MongoException> storeAll(final List<QueuedReport> reports) throws MongoException {
+        final Map<Integer, MongoException> failures = new HashMap<>();
+        if (reports.isEmpty()) return failures;
+        final BulkWriteOperation bulk = this.rs.getMongoDB().getCollection("data").initializeUnorderedBulkOperation();
+        for (final QueuedReport qr : reports) bulk.insert(qr.getReport().createMongoVersion());
+        try {
+            bulk.execute();
+        } catch (final BulkWriteException ex) {
+            if (ex.getWriteConcernError() != null) throw ex;
+            for (final BulkWriteError error : ex.getWriteErrors()) {
+                failures.put(error.getIndex(), new MongoException(error.getCode(), error.getMessage()));
+            }
+        }
+        return failures;
+    }
+}
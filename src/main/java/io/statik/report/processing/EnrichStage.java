@@ -0,0 +1,85 @@
+package io.statik.report.processing;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
+import io.statik.report.MongoDB;
+import io.statik.report.QueuedReport;
+import io.statik.report.ReportServer;
+import io.statik.report.Request;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Pipeline stage that adds the sender's country and ASN to reports and resolves their plugin sets.
+ */
+public class EnrichStage implements PipelineStage {
+
+    private final ReportServer rs;
+
+    public EnrichStage(final ReportServer rs) {
+        this.rs = rs;
+    }
+
+    @Override
+    public void process(final List<ProcessingJob> jobs) {
+        final PluginSets pluginSets = this.rs.getPluginSets();
+        for (final ProcessingJob job : jobs) {
+            try {
+                this.enrich(job.getReport());
+                if (pluginSets != null) job.setStoredReport(this.resolvePlugins(pluginSets, job.getReport()));
+            } catch (final RuntimeException ex) {
+                job.fail(ex);
+            }
+        }
+    }
+
+    /**
+     * Adds the country and ASN of the address a report was sent from to the report, if they are known.
+     *
+     * @param qr Report to enrich
+     */
+    private void enrich(final QueuedReport qr) {
+        final GeoDatabase geo = this.rs.getGeoDatabase();
+        if (geo == null || qr.getAddress() == null) return;
+        final GeoDatabase.Result result = geo.lookup(qr.getAddress());
+        if (result == null) return;
+        qr.getReport().getConfigRoot().put("geo", new JSONObject().put("country", result.getCountry()).put("asn", result.getAsn()));
+    }
+
+    /**
+     * Resolves a report's plugin set. A report carrying its plugins has them snapshotted, and a report sent as a delta
+     * has them filled in from the snapshot, so later stages always see the full list. The report stored in the data
+     * collection refers to its plugins by <code>plugin_set</code> only.
+     *
+     * @param pluginSets Plugin set snapshots
+     * @param qr         Report to resolve
+     * @return Report to store, without its plugin list if it has a plugin set
+     * @throws MongoException If the snapshot cannot be read or written
+     */
+    private QueuedReport resolvePlugins(final PluginSets pluginSets, final QueuedReport qr) throws MongoException {
+        final JSONObject report = qr.getReport().getConfigRoot();
+        final long fingerprint = report.optLong("plugin_set", 0L);
+        if (fingerprint == 0L) return qr;
+        final JSONArray plugins = report.optJSONArray("plugins");
+        if (plugins != null) pluginSets.save(fingerprint, plugins);
+        else {
+            final JSONArray known = pluginSets.getPlugins(fingerprint);
+            if (known == null) {
+                // the snapshot was never saved, so make the server send its full list next time
+                this.rs.getLogger().warning("Unknown plugin set " + Long.toHexString(fingerprint) + " from " + qr.getServerUUID() + "; storing the report without plugins.");
+                this.rs.getMongoDB().getCollection("timestamps").update(
+                    new BasicDBObject("_id", MongoDB.uuidKey(qr.getServerUUID())).append("plugin_set", fingerprint),
+                    new BasicDBObject("$unset", new BasicDBObject("plugin_set", ""))
+                );
+                report.remove("plugin_set");
+                return qr;
+            }
+            report.put("plugins", known);
+        }
+        final JSONObject stripped = new JSONObject(report, JSONObject.getNames(report));
+        stripped.remove("plugins");
+        return new QueuedReport(qr.getServerUUID(), qr.getReceived(), new Request(stripped), qr.getAddress());
+    }
+}
@@ -0,0 +1,227 @@
+package io.statik.report.processing;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only IPv4 range database mapping addresses to a country and autonomous system, memory-mapped from a local file.
+ * <p/>
+ * The file is a 16-byte header (magic <code>SGEO</code>, format version, range count, reserved) followed by 16-byte
+ * ranges sorted by start address: start, end (inclusive), ASN, a two-letter country code and two bytes of padding.
+ * Lookups binary search the mapped ranges, and results are cached per /24 prefix when the whole prefix falls inside
+ * one range or one gap, so a cached answer is always exact. Use {@link #main(String[])} to build the file from CSV.
+ */
+public class GeoDatabase {
+
+    private static final int MAGIC = 0x5347454f;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RANGE_SIZE = 16;
+    /**
+     * Cached marker for prefixes with no range.
+     */
+    private static final Result NONE = new Result(null, 0L);
+    private final MappedByteBuffer ranges;
+    private final int count;
+    private final Map<Integer, Result> cache;
+
+    /**
+     * Maps a range database file.
+     *
+     * @param file      Database file
+     * @param cacheSize Number of /24 prefixes to cache results for
+     * @throws IOException If the file cannot be read or is not a range database
+     */
+    public GeoDatabase(final File file, final int cacheSize) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            this.ranges = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, raf.length());
+        }
+        if (this.ranges.capacity() < GeoDatabase.HEADER_SIZE || this.ranges.getInt(0) != GeoDatabase.MAGIC) {
+            throw new IOException("Not a range database: " + file.getAbsolutePath());
+        }
+        if (this.ranges.getInt(4) != GeoDatabase.FORMAT) {
+            throw new IOException("Unsupported range database format " + this.ranges.getInt(4) + ": " + file.getAbsolutePath());
+        }
+        this.count = this.ranges.getInt(8);
+        if ((long) GeoDatabase.HEADER_SIZE + (long) this.count * GeoDatabase.RANGE_SIZE > this.ranges.capacity()) {
+            throw new IOException("Truncated range database: " + file.getAbsolutePath());
+        }
+        this.cache = new LinkedHashMap<Integer, Result>(1024, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Result> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Converts a CSV of <code>start,end,country,asn</code> lines, with dotted IPv4 addresses, into a range database.
+     *
+     * @param args CSV file and output file
+     * @throws IOException If either file cannot be used
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: GeoDatabase <ranges.csv> <output file>");
+            System.exit(1);
+        }
+        final List<long[]> rows = new ArrayList<>();
+        try (final BufferedReader br = Files.newBufferedReader(new File(args[0]).toPath(), Charset.forName("UTF-8"))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                final String[] parts = line.split(",");
+                if (parts.length < 4) continue;
+                final long start = GeoDatabase.parseIPv4(parts[0].trim());
+                final long end = GeoDatabase.parseIPv4(parts[1].trim());
+                final String country = parts[2].trim();
+                if (start < 0L || end < start || country.length() != 2) continue; // headers and bad lines
+                rows.add(new long[]{start, end, Long.parseLong(parts[3].trim()), (country.charAt(0) << 8) | country.charAt(1)});
+            }
+        }
+        Collections.sort(rows, new Comparator<long[]>() {
+            @Override
+            public int compare(final long[] a, final long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(args[1]))) {
+            out.writeInt(GeoDatabase.MAGIC);
+            out.writeInt(GeoDatabase.FORMAT);
+            out.writeInt(rows.size());
+            out.writeInt(0);
+            for (final long[] row : rows) {
+                out.writeInt((int) row[0]);
+                out.writeInt((int) row[1]);
+                out.writeInt((int) row[2]);
+                out.writeShort((int) row[3]);
+                out.writeShort(0);
+            }
+        }
+    }
+
+    /**
+     * Parses a dotted IPv4 address without any name resolution.
+     *
+     * @param address Address, such as <code>203.0.113.7</code>
+     * @return Address as an unsigned int, or -1 if it is not a dotted IPv4 address
+     */
+    public static long parseIPv4(final String address) {
+        final String[] parts = address.split("\\.", -1);
+        if (parts.length != 4) return -1L;
+        long ip = 0L;
+        for (final String part : parts) {
+            if (part.isEmpty() || part.length() > 3) return -1L;
+            int octet = 0;
+            for (int i = 0; i < part.length(); i++) {
+                final char c = part.charAt(i);
+                if (c < '0' || c > '9') return -1L;
+                octet = octet * 10 + (c - '0');
+            }
+            if (octet > 255) return -1L;
+            ip = (ip << 8) | octet;
+        }
+        return ip;
+    }
+
+    private long getEnd(final int index) {
+        return this.ranges.getInt(GeoDatabase.HEADER_SIZE + index * GeoDatabase.RANGE_SIZE + 4) & 0xffffffffL;
+    }
+
+    private long getStart(final int index) {
+        return this.ranges.getInt(GeoDatabase.HEADER_SIZE + index * GeoDatabase.RANGE_SIZE) & 0xffffffffL;
+    }
+
+    /**
+     * Looks up the country and ASN of an address.
+     *
+     * @param address Dotted IPv4 address; other addresses find nothing
+     * @return Result, or null if no range holds the address
+     */
+    public Result lookup(final String address) {
+        final long ip = GeoDatabase.parseIPv4(address);
+        if (ip < 0L) return null;
+        final int prefix = (int) (ip >>> 8);
+        Result result;
+        synchronized (this.cache) {
+            result = this.cache.get(prefix);
+        }
+        if (result != null) return result == GeoDatabase.NONE ? null : result;
+        // find the last range starting at or before the address
+        int low = 0;
+        int high = this.count - 1;
+        int found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (this.getStart(mid) <= ip) {
+                found = mid;
+                low = mid + 1;
+            } else high = mid - 1;
+        }
+        final long base = ip & ~0xffL;
+        final long from;
+        final long to;
+        if (found >= 0 && this.getEnd(found) >= ip) {
+            final int offset = GeoDatabase.HEADER_SIZE + found * GeoDatabase.RANGE_SIZE;
+            final char[] country = {(char) (this.ranges.get(offset + 12) & 0xff), (char) (this.ranges.get(offset + 13) & 0xff)};
+            result = new Result(new String(country), this.ranges.getInt(offset + 8) & 0xffffffffL);
+            from = this.getStart(found);
+            to = this.getEnd(found);
+        } else {
+            result = GeoDatabase.NONE;
+            from = found >= 0 ? this.getEnd(found) + 1L : 0L;
+            to = found + 1 < this.count ? this.getStart(found + 1) - 1L : 0xffffffffL;
+        }
+        if (from <= base && to >= base + 0xffL) {
+            synchronized (this.cache) {
+                this.cache.put(prefix, result);
+            }
+        }
+        return result == GeoDatabase.NONE ? null : result;
+    }
+
+    /**
+     * Country and autonomous system of an address.
+     */
+    public static class Result {
+
+        private final String country;
+        private final long asn;
+
+        private Result(final String country, final long asn) {
+            this.country = country;
+            this.asn = asn;
+        }
+
+        /**
+         * Gets the autonomous system number.
+         *
+         * @return ASN, or 0 if unknown
+         */
+        public long getAsn() {
+            return this.asn;
+        }
+
+        /**
+         * Gets the two-letter country code.
+         *
+         * @return Country code
+         */
+        public String getCountry() {
+            return this.country;
+        }
+    }
+}
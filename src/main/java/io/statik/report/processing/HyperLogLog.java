@@ -0,0 +1,163 @@
+package io.statik.report.processing;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * HyperLogLog distinct counter with 2^13 registers, giving about 1% standard error.
+ * <p/>
+ * Counters start sparse, holding only their non-zero registers, and switch to a dense register array once they hold
+ * a few hundred, so rarely seen dimension values stay tiny. Counters are unioned by taking the maximum of each register, so they can be merged across time
+ * buckets and nodes.
+ */
+public class HyperLogLog {
+
+    private static final int PRECISION = 13;
+    private static final int REGISTERS = 1 << HyperLogLog.PRECISION;
+    /**
+     * Sparse entries are ints of (register index << 8 | rank), searched linearly; past this many, the counter turns
+     * dense to keep updates cheap.
+     */
+    private static final int SPARSE_LIMIT = HyperLogLog.REGISTERS / 16;
+    private static final byte FORMAT_DENSE = 0;
+    private static final byte FORMAT_SPARSE = 1;
+    private byte[] dense = null;
+    private int[] sparse = new int[8];
+    private int sparseSize = 0;
+
+    /**
+     * Reads a counter written by {@link #toBytes()}.
+     *
+     * @param bytes Serialized counter
+     * @return HyperLogLog
+     * @throws IllegalArgumentException If the bytes are not a serialized counter
+     */
+    public static HyperLogLog fromBytes(final byte[] bytes) {
+        final HyperLogLog hll = new HyperLogLog();
+        if (bytes.length == 1 + HyperLogLog.REGISTERS && bytes[0] == HyperLogLog.FORMAT_DENSE) {
+            hll.dense = Arrays.copyOfRange(bytes, 1, bytes.length);
+            hll.sparse = null;
+        } else if (bytes.length >= 1 && bytes[0] == HyperLogLog.FORMAT_SPARSE && (bytes.length - 1) % 3 == 0) {
+            for (int i = 1; i < bytes.length; i += 3) {
+                hll.set(((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff), bytes[i + 2]);
+            }
+        } else throw new IllegalArgumentException("Invalid HyperLogLog");
+        return hll;
+    }
+
+    /**
+     * Hashes a UUID to 64 well-mixed bits.
+     *
+     * @param uuid UUID to hash
+     * @return Hash
+     */
+    public static long hash(final UUID uuid) {
+        long h = uuid.getMostSignificantBits() ^ Long.rotateLeft(uuid.getLeastSignificantBits(), 29) * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Adds a hashed element.
+     *
+     * @param hash 64-bit hash, such as from {@link #hash(java.util.UUID)}
+     */
+    public void add(final long hash) {
+        final int index = (int) (hash >>> (64 - HyperLogLog.PRECISION));
+        final long rest = (hash << HyperLogLog.PRECISION) | (1L << (HyperLogLog.PRECISION - 1));
+        this.set(index, (byte) (Long.numberOfLeadingZeros(rest) + 1));
+    }
+
+    /**
+     * Estimates the number of distinct elements added.
+     *
+     * @return Estimated cardinality
+     */
+    public long estimate() {
+        double sum = 0D;
+        int zeros = 0;
+        for (int i = 0; i < HyperLogLog.REGISTERS; i++) {
+            final byte rank = this.get(i);
+            sum += 1D / (1L << rank);
+            if (rank == 0) zeros++;
+        }
+        final double m = HyperLogLog.REGISTERS;
+        final double estimate = (0.7213D / (1D + 1.079D / m)) * m * m / sum;
+        if (estimate <= 2.5D * m && zeros > 0) return Math.round(m * Math.log(m / zeros)); // linear counting
+        return Math.round(estimate);
+    }
+
+    private byte get(final int index) {
+        if (this.dense != null) return this.dense[index];
+        for (int i = 0; i < this.sparseSize; i++) {
+            if (this.sparse[i] >>> 8 == index) return (byte) this.sparse[i];
+        }
+        return 0;
+    }
+
+    /**
+     * Unions another counter into this one.
+     *
+     * @param other Counter to merge in
+     */
+    public void merge(final HyperLogLog other) {
+        if (other.dense != null) {
+            for (int i = 0; i < HyperLogLog.REGISTERS; i++) {
+                if (other.dense[i] != 0) this.set(i, other.dense[i]);
+            }
+        } else {
+            for (int i = 0; i < other.sparseSize; i++) this.set(other.sparse[i] >>> 8, (byte) other.sparse[i]);
+        }
+    }
+
+    /**
+     * Raises a register to the given rank if it is lower.
+     */
+    private void set(final int index, final byte rank) {
+        if (this.dense != null) {
+            if (this.dense[index] < rank) this.dense[index] = rank;
+            return;
+        }
+        for (int i = 0; i < this.sparseSize; i++) {
+            if (this.sparse[i] >>> 8 != index) continue;
+            if ((byte) this.sparse[i] < rank) this.sparse[i] = (index << 8) | rank;
+            return;
+        }
+        if (this.sparseSize >= HyperLogLog.SPARSE_LIMIT) {
+            this.dense = new byte[HyperLogLog.REGISTERS];
+            for (int i = 0; i < this.sparseSize; i++) this.dense[this.sparse[i] >>> 8] = (byte) this.sparse[i];
+            this.dense[index] = rank;
+            this.sparse = null;
+            return;
+        }
+        if (this.sparseSize == this.sparse.length) this.sparse = Arrays.copyOf(this.sparse, this.sparse.length * 2);
+        this.sparse[this.sparseSize++] = (index << 8) | rank;
+    }
+
+    /**
+     * Serializes this counter: a format byte, then either every register or three bytes per non-zero register.
+     *
+     * @return Serialized counter
+     */
+    public byte[] toBytes() {
+        if (this.dense != null) {
+            final byte[] bytes = new byte[1 + HyperLogLog.REGISTERS];
+            bytes[0] = HyperLogLog.FORMAT_DENSE;
+            System.arraycopy(this.dense, 0, bytes, 1, HyperLogLog.REGISTERS);
+            return bytes;
+        }
+        final byte[] bytes = new byte[1 + this.sparseSize * 3];
+        bytes[0] = HyperLogLog.FORMAT_SPARSE;
+        for (int i = 0; i < this.sparseSize; i++) {
+            final int index = this.sparse[i] >>> 8;
+            bytes[1 + i * 3] = (byte) (index >>> 8);
+            bytes[2 + i * 3] = (byte) index;
+            bytes[3 + i * 3] = (byte) this.sparse[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,196 @@
+package io.statik.report.processing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mergeable quantile sketch over non-negative values, using logarithmically sized buckets.
+ * <p/>
+ * Each bucket spans a fixed relative width, so any quantile is answered within that relative error regardless of the
+ * distribution. Histograms are merged by adding bucket counts, which makes them safe to combine across intervals and
+ * nodes in any order.
+ */
+public class LogHistogram {
+
+    /**
+     * Relative width of each bucket. Quantiles are accurate to within half of this.
+     */
+    public static final double RELATIVE_ERROR = 0.02D;
+    private static final double LOG_BASE = Math.log(1D + LogHistogram.RELATIVE_ERROR);
+    private final TreeMap<Integer, Long> buckets = new TreeMap<>();
+    private long count = 0L;
+
+    /**
+     * Reads a histogram written by {@link #toBytes()}.
+     *
+     * @param bytes Serialized histogram
+     * @return LogHistogram
+     * @throws IllegalArgumentException If the bytes are not a serialized histogram
+     */
+    public static LogHistogram fromBytes(final byte[] bytes) {
+        final LogHistogram lh = new LogHistogram();
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            final int size = LogHistogram.readVarInt(in);
+            int bucket = 0;
+            for (int i = 0; i < size; i++) {
+                bucket += LogHistogram.readVarInt(in) - (i == 0 ? 1 : 0);
+                lh.add(bucket, LogHistogram.readVarLong(in));
+            }
+        } catch (final IOException ex) {
+            throw new IllegalArgumentException("Invalid histogram", ex);
+        }
+        return lh;
+    }
+
+    /**
+     * Gets the bucket a value falls into. Bucket 0 holds values below 1.
+     *
+     * @param value Value
+     * @return Bucket index
+     */
+    public static int getBucket(final double value) {
+        if (value < 1D) return 0;
+        return 1 + (int) Math.floor(Math.log(value) / LogHistogram.LOG_BASE);
+    }
+
+    /**
+     * Gets the representative value of a bucket, the midpoint of its range.
+     *
+     * @param bucket Bucket index
+     * @return Value
+     */
+    public static double getValue(final int bucket) {
+        if (bucket <= 0) return 0D;
+        final double low = Math.exp((bucket - 1) * LogHistogram.LOG_BASE);
+        return low * (1D + LogHistogram.RELATIVE_ERROR / 2D);
+    }
+
+    private static int readVarInt(final DataInputStream in) throws IOException {
+        return (int) LogHistogram.readVarLong(in);
+    }
+
+    private static long readVarLong(final DataInputStream in) throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeVarLong(final DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0L) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Adds a count to a bucket.
+     *
+     * @param bucket Bucket index
+     * @param count  Count to add
+     */
+    public void add(final int bucket, final long count) {
+        if (count <= 0L) return;
+        final Long current = this.buckets.get(bucket);
+        this.buckets.put(bucket, current == null ? count : current + count);
+        this.count += count;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value Non-negative value
+     */
+    public void record(final double value) {
+        this.add(LogHistogram.getBucket(Math.max(0D, value)), 1L);
+    }
+
+    /**
+     * Gets the bucket counts, keyed by bucket index in ascending order.
+     *
+     * @return Bucket counts
+     */
+    public Map<Integer, Long> getBuckets() {
+        return this.buckets;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Checks if nothing has been recorded.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return this.count == 0L;
+    }
+
+    /**
+     * Adds another histogram's counts to this one.
+     *
+     * @param other Histogram to merge in
+     */
+    public void merge(final LogHistogram other) {
+        for (final Map.Entry<Integer, Long> entry : other.buckets.entrySet()) this.add(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Adds another histogram's counts to this one, each multiplied by a weight and rounded, such as to scale a sampled
+     * histogram up to the population it was sampled from.
+     *
+     * @param other  Histogram to merge in
+     * @param weight Weight of each of the other histogram's values
+     */
+    public void merge(final LogHistogram other, final double weight) {
+        for (final Map.Entry<Integer, Long> entry : other.buckets.entrySet()) this.add(entry.getKey(), Math.round(entry.getValue() * weight));
+    }
+
+    /**
+     * Estimates a quantile.
+     *
+     * @param q Quantile between 0 and 1, such as 0.99
+     * @return Estimated value, or NaN if the histogram is empty
+     */
+    public double quantile(final double q) {
+        if (this.count == 0L) return Double.NaN;
+        final long rank = (long) Math.ceil(Math.max(0D, Math.min(1D, q)) * this.count);
+        long seen = 0L;
+        for (final Map.Entry<Integer, Long> entry : this.buckets.entrySet()) {
+            seen += entry.getValue();
+            if (seen >= rank) return LogHistogram.getValue(entry.getKey());
+        }
+        return LogHistogram.getValue(this.buckets.lastKey());
+    }
+
+    /**
+     * Serializes this histogram as varint-encoded bucket deltas and counts.
+     *
+     * @return Serialized histogram
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(this.buckets.size() * 3 + 2);
+        try (final DataOutputStream out = new DataOutputStream(baos)) {
+            LogHistogram.writeVarLong(out, this.buckets.size());
+            int previous = -1;
+            for (final Map.Entry<Integer, Long> entry : this.buckets.entrySet()) {
+                LogHistogram.writeVarLong(out, entry.getKey() - previous);
+                LogHistogram.writeVarLong(out, entry.getValue());
+                previous = entry.getKey();
+            }
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex); // cannot happen with an in-memory stream
+        }
+        return baos.toByteArray();
+    }
+}
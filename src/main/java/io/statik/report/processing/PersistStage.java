@@ -0,0 +1,45 @@
+package io.statik.report.processing;
+
+import com.mongodb.MongoException;
+import io.statik.report.QueuedReport;
+import io.statik.report.ReportServer;
+import io.statik.report.TraceContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pipeline stage that writes a batch of reports to MongoDB at once, see {@link ReportStore#storeAll}. Only the jobs
+ * whose reports could not be written fail; the rest of the batch moves on.
+ */
+public class PersistStage implements PipelineStage {
+
+    private final ReportServer rs;
+    private final ReportStore store;
+
+    public PersistStage(final ReportServer rs) {
+        this.rs = rs;
+        final String layout = this.rs.getConfiguration().getString("config.database.layout", "document");
+        this.store = layout.equalsIgnoreCase("bucketed") ? new BucketStore(this.rs) : new DocumentStore(this.rs);
+    }
+
+    @Override
+    public void process(final List<ProcessingJob> jobs) throws MongoException {
+        final List<QueuedReport> reports = new ArrayList<>(jobs.size());
+        for (final ProcessingJob job : jobs) reports.add(job.getStoredReport());
+        final Map<Integer, MongoException> errors = this.store.storeAll(reports);
+        final Deduplicator dedup = this.rs.getDeduplicator();
+        for (int i = 0; i < jobs.size(); i++) {
+            final ProcessingJob job = jobs.get(i);
+            final MongoException error = errors.get(i);
+            if (error != null) {
+                job.fail(error);
+                continue;
+            }
+            final TraceContext trace = job.getReport().getTrace();
+            if (trace != null) trace.mark("stored");
+            if (job.getDedupKey() != 0L) dedup.add(job.getDedupKey());
+        }
+    }
+}
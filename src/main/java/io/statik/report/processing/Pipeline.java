@@ -0,0 +1,172 @@
+package io.statik.report.processing;
+
+import io.statik.report.Configuration;
+import io.statik.report.ReportServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Staged pipeline that reserved jobs pass through on their way to MongoDB.
+ * <p/>
+ * Each stage in <code>config.pipeline.stages</code> has its own bounded queue (<code>queue_size</code>), worker
+ * threads (<code>workers</code>) and the most jobs a worker takes at once (<code>batch_size</code>), so an expensive
+ * stage can be given more threads or larger batches without touching the others. A full queue blocks the stage
+ * before it, so a slow stage holds back the processors instead of filling the heap. The built-in stages are
+ * <code>decode</code>, <code>validate</code>, <code>enrich</code>, <code>persist</code>, <code>aggregate</code> and
+ * <code>ack</code>; an entry with a <code>class</code> adds a custom {@link io.statik.report.processing.PipelineStage}.
+ * Aggregation runs after persisting by default, so a report whose write fails and is retried is not counted twice.
+ * <p/>
+ * The ack stage always comes last, and is added if not configured: beanstalkd only lets the connection that reserved
+ * a job delete it, so it hands jobs back to the {@link io.statik.report.processing.ProcessRunnable} that reserved
+ * them. Completed jobs skip straight to it, and failed jobs go back to their processor at once.
+ */
+public class Pipeline {
+
+    private static final String[] DEFAULT_STAGES = {"decode", "validate", "enrich", "persist", "aggregate", "ack"};
+    private final ReportServer rs;
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * Creates a new Pipeline from the server's configuration and starts its workers.
+     *
+     * @param rs ReportServer this is running from
+     */
+    public Pipeline(final ReportServer rs) {
+        this.rs = rs;
+        final Configuration c = this.rs.getConfiguration();
+        JSONArray stages = c.getJSONArray("config.pipeline.stages");
+        if (stages == null) {
+            stages = new JSONArray();
+            for (final String name : Pipeline.DEFAULT_STAGES) stages.put(new JSONObject().put("name", name));
+        }
+        Step ack = null;
+        for (int i = 0; i < stages.length(); i++) {
+            final JSONObject config = stages.getJSONObject(i);
+            final Step step = new Step(config, this.createStage(config));
+            if (step.stage instanceof AckStage) ack = step;
+            else this.steps.add(step);
+        }
+        if (ack == null) ack = new Step(new JSONObject().put("name", "ack"), new AckStage(this.rs));
+        this.steps.add(ack);
+        for (int i = 0; i < this.steps.size(); i++) this.steps.get(i).start(i);
+    }
+
+    private PipelineStage createStage(final JSONObject config) {
+        final String name = config.getString("name");
+        final String className = config.optString("class", null);
+        if (className != null) {
+            try {
+                return Class.forName(className).asSubclass(PipelineStage.class).getConstructor(ReportServer.class).newInstance(this.rs);
+            } catch (final ReflectiveOperationException | ClassCastException ex) {
+                throw new IllegalArgumentException("Invalid class for pipeline stage " + name + ": " + className, ex);
+            }
+        }
+        switch (name) {
+            case "decode":
+                return new DecodeStage(this.rs);
+            case "validate":
+                return new ValidateStage(this.rs);
+            case "enrich":
+                return new EnrichStage(this.rs);
+            case "persist":
+                return new PersistStage(this.rs);
+            case "aggregate":
+                return new AggregateStage(this.rs);
+            case "ack":
+                return new AckStage(this.rs);
+            default:
+                throw new IllegalArgumentException("Unknown pipeline stage: " + name);
+        }
+    }
+
+    /**
+     * Hands a job to the first stage, waiting while its queue is full.
+     *
+     * @param job Reserved job
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void submit(final ProcessingJob job) throws InterruptedException {
+        this.steps.get(0).queue.put(job);
+    }
+
+    /**
+     * Moves processed jobs on from a stage.
+     *
+     * @param index Index of the stage
+     * @param jobs  Jobs the stage processed
+     * @throws InterruptedException If interrupted while waiting for room in the next queue
+     */
+    private void advance(final int index, final List<ProcessingJob> jobs) throws InterruptedException {
+        final boolean last = index == this.steps.size() - 1;
+        for (final ProcessingJob job : jobs) {
+            if (job.isFailed()) job.getSource().fail(job);
+            else if (last) continue; // acknowledged by the ack stage
+            else if (job.isComplete()) this.steps.get(this.steps.size() - 1).queue.put(job);
+            else this.steps.get(index + 1).queue.put(job);
+        }
+    }
+
+    /**
+     * A stage with its queue and workers.
+     */
+    private class Step implements Runnable {
+
+        private final String name;
+        private final PipelineStage stage;
+        private final BlockingQueue<ProcessingJob> queue;
+        private final int workers;
+        private final int batchSize;
+        private int index;
+
+        private Step(final JSONObject config, final PipelineStage stage) {
+            this.name = config.getString("name");
+            this.stage = stage;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, config.optInt("queue_size", 256)));
+            this.workers = Math.max(1, config.optInt("workers", 1));
+            this.batchSize = Math.max(1, config.optInt("batch_size", 16));
+        }
+
+        private void start(final int index) {
+            this.index = index;
+            for (int i = 0; i < this.workers; i++) {
+                final Thread t = new Thread(this, "Pipeline " + this.name + " " + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            Pipeline.this.rs.getLogger().info("Pipeline stage " + this.name + ": " + this.workers + " workers, batches of " + this.batchSize + ".");
+        }
+
+        @Override
+        public void run() {
+            final List<ProcessingJob> batch = new ArrayList<>(this.batchSize);
+            while (true) {
+                try {
+                    final ProcessingJob first = this.queue.poll(1L, TimeUnit.SECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    this.queue.drainTo(batch, this.batchSize - 1);
+                    try {
+                        this.stage.process(batch);
+                    } catch (final Throwable t) {
+                        for (final ProcessingJob job : batch) job.fail(t);
+                    }
+                    Pipeline.this.advance(this.index, batch);
+                } catch (final InterruptedException ex) {
+                    return;
+                } catch (final Throwable t) {
+                    // a worker must never die, or the stage permanently loses capacity
+                    Pipeline.this.rs.getLogger().log(Level.SEVERE, "An unexpected exception escaped pipeline stage " + this.name + ": " + t.getMessage(), t);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package io.statik.report.processing;
+
+import java.util.List;
+
+/**
+ * A step of the processing {@link io.statik.report.processing.Pipeline}.
+ * <p/>
+ * Stages are listed in <code>config.pipeline.stages</code>, each with its own queue, worker threads and batch size.
+ * Besides the built-in stages, an entry may name a class implementing this interface with a public constructor taking
+ * the {@link io.statik.report.ReportServer}. A stage with more than one worker is called from several threads at
+ * once, so it must be thread-safe.
+ */
+public interface PipelineStage {
+
+    /**
+     * Processes a batch of jobs. A job that cannot be processed should be {@link ProcessingJob#fail failed}, and a job
+     * that needs no further processing {@link ProcessingJob#complete completed}; the rest move on to the next stage.
+     *
+     * @param jobs Jobs taken from this stage's queue, at most the stage's batch size
+     * @throws Exception If the whole batch failed, which fails every job in it
+     */
+    void process(List<ProcessingJob> jobs) throws Exception;
+
+}
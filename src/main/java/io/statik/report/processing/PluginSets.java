@@ -0,0 +1,171 @@
+package io.statik.report.processing;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
+import io.statik.report.ReportServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshots of plugin lists, shared by every report with the same plugins.
+ * <p/>
+ * Each distinct plugin list is stored once in the plugin sets collection, keyed by its {@link #fingerprint
+ * fingerprint}. Reports then refer to their list by fingerprint in <code>plugin_set</code> instead of holding it, and
+ * clients whose list has not changed can send the fingerprint instead of the list. Recently used snapshots are cached,
+ * since most servers keep the same plugins for a long time.
+ */
+public class PluginSets {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final ReportServer rs;
+    private final Map<Long, Snapshot> cache;
+
+    public PluginSets(final ReportServer rs) {
+        this.rs = rs;
+        final int cacheSize = Math.max(1, this.rs.getConfiguration().getInt("config.plugin_sets.cache_size", 10000));
+        this.cache = new LinkedHashMap<Long, Snapshot>(1024, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Snapshot> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Computes the fingerprint of a sanitized plugin list. Plugins and their data entries are ordered by name first,
+     * so the fingerprint does not depend on the order a client lists them in.
+     *
+     * @param plugins Sanitized plugin list
+     * @return Fingerprint, never 0 or -1
+     */
+    public static long fingerprint(final JSONArray plugins) {
+        final List<String> entries = new ArrayList<>(plugins.length());
+        for (int i = 0; i < plugins.length(); i++) {
+            final JSONObject plugin = plugins.optJSONObject(i);
+            if (plugin == null) continue;
+            final StringBuilder sb = new StringBuilder();
+            sb.append(plugin.optString("name")).append('\0').append(plugin.optString("version"));
+            final JSONArray data = plugin.optJSONArray("data");
+            if (data != null) {
+                final List<String> values = new ArrayList<>(data.length());
+                for (int j = 0; j < data.length(); j++) {
+                    final JSONObject entry = data.optJSONObject(j);
+                    if (entry != null) values.add(entry.optString("name") + '\0' + JSONObject.valueToString(entry.opt("value")));
+                }
+                Collections.sort(values);
+                for (final String value : values) sb.append('\1').append(value);
+            }
+            entries.add(sb.toString());
+        }
+        Collections.sort(entries);
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for (final String entry : entries) {
+            for (final byte b : entry.getBytes(PluginSets.UTF8)) {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            h ^= 0xff; // entry separator, which cannot appear in UTF-8
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0L || h == -1L ? 1L : h; // 0 means no plugin set is known, and -1 marks a rejected delta
+    }
+
+    private DBCollection getCollection() {
+        final DBCollection dbc = this.rs.getMongoDB().getCollection("plugin_sets");
+        if (dbc == null) throw new IllegalStateException("The plugin_sets collection does not exist in the config.");
+        return dbc;
+    }
+
+    private Snapshot getCached(final long fingerprint) {
+        synchronized (this.cache) {
+            return this.cache.get(fingerprint);
+        }
+    }
+
+    private void putCached(final long fingerprint, final Snapshot snapshot) {
+        synchronized (this.cache) {
+            this.cache.put(fingerprint, snapshot);
+        }
+    }
+
+    /**
+     * Gets a stored plugin list, in MongoDB form.
+     *
+     * @param fingerprint Fingerprint of the list
+     * @return Plugin list, or null if no list with the fingerprint has been stored
+     * @throws MongoException If the list is not cached and cannot be read
+     */
+    public BasicDBList getList(final long fingerprint) throws MongoException {
+        final Snapshot snapshot = this.load(fingerprint);
+        return snapshot == null ? null : snapshot.list;
+    }
+
+    /**
+     * Gets a stored plugin list, in JSON form.
+     *
+     * @param fingerprint Fingerprint of the list
+     * @return Plugin list, or null if no list with the fingerprint has been stored
+     * @throws MongoException If the list is not cached and cannot be read
+     */
+    public JSONArray getPlugins(final long fingerprint) throws MongoException {
+        final Snapshot snapshot = this.load(fingerprint);
+        return snapshot == null ? null : new JSONArray(snapshot.json);
+    }
+
+    private Snapshot load(final long fingerprint) throws MongoException {
+        Snapshot snapshot = this.getCached(fingerprint);
+        if (snapshot != null) return snapshot;
+        final DBObject dbo = this.getCollection().findOne(new BasicDBObject("_id", fingerprint));
+        if (dbo == null || !(dbo.get("plugins") instanceof BasicDBList)) return null;
+        final BasicDBList list = (BasicDBList) dbo.get("plugins");
+        snapshot = new Snapshot(list, JSON.serialize(list));
+        this.putCached(fingerprint, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Stores a plugin list, unless it is already stored.
+     *
+     * @param fingerprint Fingerprint of the list
+     * @param plugins     Sanitized plugin list
+     * @throws MongoException If the list cannot be written
+     */
+    public void save(final long fingerprint, final JSONArray plugins) throws MongoException {
+        if (this.getCached(fingerprint) != null) return;
+        final String json = plugins.toString();
+        final BasicDBList list = (BasicDBList) JSON.parse(json);
+        this.getCollection().update(
+            new BasicDBObject("_id", fingerprint),
+            new BasicDBObject("$setOnInsert", new BasicDBObject("plugins", list).append("created", new Date())),
+            true,
+            false
+        );
+        this.putCached(fingerprint, new Snapshot(list, json));
+    }
+
+    private static class Snapshot {
+
+        private final BasicDBList list;
+        private final String json;
+
+        private Snapshot(final BasicDBList list, final String json) {
+            this.list = list;
+            this.json = json;
+        }
+    }
+}
@@ -1,72 +1,344 @@
 package io.statik.report.processing;
 
-import com.mongodb.DB;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
 import com.trendrr.beanstalk.BeanstalkClient;
 import com.trendrr.beanstalk.BeanstalkException;
 import com.trendrr.beanstalk.BeanstalkJob;
+import com.trendrr.beanstalk.BeanstalkResult;
+import io.statik.report.ReportRouter;
 import io.statik.report.ReportServer;
-import io.statik.report.Request;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
+/**
+ * Reserves jobs from beanstalkd and feeds them to the {@link io.statik.report.processing.Pipeline}.
+ * <p/>
+ * Up to <code>config.pipeline.max_in_flight</code> of this processor's jobs may be in the pipeline at once. Jobs come
+ * back to the processor once done, since only the connection that reserved a job may delete, release or bury it:
+ * processed jobs are deleted in one round trip per tube, and failed jobs are released or buried.
+ */
 public class ProcessRunnable implements Runnable {
 
+    /**
+     * Seconds to block on a single tube once every tube has been found empty.
+     */
+    private static final int IDLE_RESERVE_TIMEOUT = 1;
     private final ReportServer rs;
-    private final BeanstalkClient bsc;
-    private final String collection;
+    private final ReportRouter.Tube[] tubes;
+    private final BeanstalkClient[] clients;
+    private final int[] currentWeights;
+    private final int totalWeight;
+    private final Pipeline pipeline;
+    private final int maxInFlight;
+    private final BlockingQueue<ProcessingJob> done = new LinkedBlockingQueue<>();
+    private final int maxRetries;
+    private final int baseRetryDelay;
+    private final int maxRetryDelay;
+    private int inFlight = 0;
     private volatile boolean running = true;
 
     public ProcessRunnable(final ReportServer instance) {
         this.rs = instance;
-        this.bsc = this.rs.getNewBeanstalkClient();
-        this.collection = this.rs.getConfiguration().getString("config.database.collections.data", null);
+        final List<ReportRouter.Tube> tubeList = this.rs.getReportRouter().getTubes();
+        this.tubes = tubeList.toArray(new ReportRouter.Tube[tubeList.size()]);
+        this.clients = new BeanstalkClient[this.tubes.length];
+        this.currentWeights = new int[this.tubes.length];
+        int total = 0;
+        for (int i = 0; i < this.tubes.length; i++) {
+            this.clients[i] = this.rs.getNewBeanstalkClient(this.tubes[i].getName());
+            total += this.tubes[i].getWeight();
+        }
+        this.totalWeight = total;
+        this.pipeline = this.rs.getPipeline();
+        this.maxInFlight = Math.max(1, this.rs.getConfiguration().getInt("config.pipeline.max_in_flight", 64));
+        this.maxRetries = this.rs.getConfiguration().getInt("config.beanstalkd.retries.max", 5);
+        this.baseRetryDelay = Math.max(1, this.rs.getConfiguration().getInt("config.beanstalkd.retries.base_delay", 5));
+        this.maxRetryDelay = this.rs.getConfiguration().getInt("config.beanstalkd.retries.max_delay", 600);
+    }
+
+    /**
+     * Picks the next tube to reserve from using smooth weighted round-robin, so each tube gets reserves in proportion
+     * to its weight without long runs on any single tube.
+     *
+     * @return Index of the tube to try first
+     */
+    private int nextTube() {
+        int best = 0;
+        for (int i = 0; i < this.tubes.length; i++) {
+            this.currentWeights[i] += this.tubes[i].getWeight();
+            if (this.currentWeights[i] > this.currentWeights[best]) best = i;
+        }
+        this.currentWeights[best] -= this.totalWeight;
+        return best;
+    }
+
+    /**
+     * Reserves the next job. The scheduled tube is tried first without blocking, falling through to the others in
+     * order. If all tubes are empty, this blocks briefly on the scheduled tube, unless jobs are in the pipeline: those
+     * must be settled, so null is returned instead.
+     *
+     * @return Reserved job, or null if none became available
+     * @throws BeanstalkException If reserving fails
+     */
+    private BeanstalkJob reserve() throws BeanstalkException {
+        final int first = this.nextTube();
+        if (this.inFlight == 0 && this.tubes.length == 1) return this.clients[first].reserve(null); // wait indefinitely for a job
+        for (int i = 0; i < this.tubes.length; i++) {
+            final BeanstalkJob bsj = this.clients[(first + i) % this.tubes.length].reserve(0);
+            if (bsj != null) return bsj;
+        }
+        return this.inFlight > 0 ? null : this.clients[first].reserve(ProcessRunnable.IDLE_RESERVE_TIMEOUT);
+    }
+
+    /**
+     * Hands processed jobs back to be deleted. Called by the pipeline's ack stage.
+     *
+     * @param jobs Jobs reserved by this processor
+     */
+    void acknowledge(final List<ProcessingJob> jobs) {
+        this.done.addAll(jobs);
+    }
+
+    /**
+     * Hands a failed job back to be released or buried. Called by the pipeline.
+     *
+     * @param job Job reserved by this processor
+     */
+    void fail(final ProcessingJob job) {
+        this.done.add(job);
+    }
+
+    /**
+     * Deletes or handles the failure of every job handed back so far.
+     *
+     * @param wait Whether to wait briefly for a job if none have been handed back
+     */
+    private void settle(final boolean wait) {
+        final List<ProcessingJob> jobs = new ArrayList<>();
+        try {
+            final ProcessingJob first = wait ? this.done.poll(ProcessRunnable.IDLE_RESERVE_TIMEOUT, TimeUnit.SECONDS) : this.done.poll();
+            if (first == null) return;
+            jobs.add(first);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.running = false;
+            return;
+        }
+        this.done.drainTo(jobs);
+        this.inFlight -= jobs.size();
+        final Map<BeanstalkClient, List<BeanstalkJob>> deletes = new IdentityHashMap<>();
+        for (final ProcessingJob job : jobs) {
+            final BeanstalkJob bsj = job.getJob();
+            if (job.isFailed()) {
+                this.handleFailure(bsj, job.getFailure());
+                continue;
+            }
+            List<BeanstalkJob> list = deletes.get(bsj.getClient());
+            if (list == null) deletes.put(bsj.getClient(), list = new ArrayList<>());
+            list.add(bsj);
+        }
+        for (final Map.Entry<BeanstalkClient, List<BeanstalkJob>> entry : deletes.entrySet()) {
+            for (final BeanstalkResult result : entry.getKey().deleteAll(entry.getValue())) {
+                if (result.isSuccess()) continue;
+                this.rs.getLogger().warning("Could not delete beanstalk job " + result.getId() + ":");
+                this.rs.getLogger().log(Level.WARNING, result.getError().getMessage(), result.getError());
+            }
+        }
+    }
+
+    /**
+     * Sorts a processing failure into what should happen to its job.
+     *
+     * @param t Failure
+     * @return Failure class
+     */
+    private Failure classify(final Throwable t) {
+        if (t instanceof MongoException && ((MongoException) t).getCode() == 11000) return Failure.STORED; // duplicate key
+        if (t instanceof MongoException) return Failure.TRANSIENT;
+        // bad data from decoding or validating the report; anything else, such as a bug, gets retried before burial
+        if (t instanceof JSONException || t instanceof IllegalArgumentException) return Failure.POISON;
+        return Failure.TRANSIENT;
+    }
+
+    /**
+     * Reads a job's priority and release count from beanstalkd.
+     *
+     * @param bsj Reserved job
+     * @return Array of priority and releases, or null if the stats could not be read
+     */
+    private long[] getJobStats(final BeanstalkJob bsj) {
+        try {
+            final long[] stats = new long[2];
+            for (final String line : bsj.getClient().jobStats(bsj.getId()).split("\n")) {
+                final String[] parts = line.split(":", 2);
+                if (parts.length < 2) continue;
+                if (parts[0].trim().equals("pri")) stats[0] = Long.parseLong(parts[1].trim());
+                else if (parts[0].trim().equals("releases")) stats[1] = Long.parseLong(parts[1].trim());
+            }
+            return stats;
+        } catch (final BeanstalkException | NumberFormatException ex) {
+            this.rs.getLogger().log(Level.WARNING, "Could not read stats for job " + bsj.getId() + ": " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Buries a job that cannot be processed and records why in the poison collection, if configured.
+     *
+     * @param bsj      Reserved job
+     * @param priority Priority to bury the job with
+     * @param reason   Why the job was buried
+     * @param cause    Failure that led to burying the job
+     */
+    private void bury(final BeanstalkJob bsj, final long priority, final String reason, final Throwable cause) {
+        this.rs.getLogger().log(Level.WARNING, "Burying job " + bsj.getId() + ": " + reason, cause);
+        try {
+            bsj.getClient().bury(bsj, priority);
+        } catch (final BeanstalkException ex) {
+            this.rs.getLogger().log(Level.WARNING, "Could not bury job " + bsj.getId() + ": " + ex.getMessage(), ex);
+        }
+        try {
+            final DBCollection dbc = this.rs.getMongoDB().getCollection("poison");
+            if (dbc == null) return;
+            final String data = new String(bsj.getData(), Charset.forName("UTF-8"));
+            dbc.insert(new BasicDBObject("job", bsj.getId())
+                .append("reason", reason)
+                .append("exception", String.valueOf(cause))
+                .append("data", data.length() > 4096 ? data.substring(0, 4096) : data)
+                .append("buried", new Date()));
+        } catch (final MongoException ex) {
+            this.rs.getLogger().log(Level.WARNING, "Could not record poison job " + bsj.getId() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Decides the fate of a job whose processing failed. Transient failures are released with exponential backoff
+     * until <code>config.beanstalkd.retries.max</code> releases, then buried; poison jobs are buried at once.
+     *
+     * @param bsj Reserved job
+     * @param t   Failure
+     */
+    private void handleFailure(final BeanstalkJob bsj, final Throwable t) {
+        final Failure failure = this.classify(t);
+        if (failure == Failure.STORED) {
+            this.delete(bsj);
+            return;
+        }
+        final long[] stats = this.getJobStats(bsj);
+        final long priority = stats == null ? 0L : stats[0];
+        if (failure == Failure.POISON) {
+            this.bury(bsj, priority, "Unprocessable job: " + t, t);
+            return;
+        }
+        final long releases = stats == null ? 0L : stats[1];
+        if (releases >= this.maxRetries) {
+            this.bury(bsj, priority, "Retries exhausted after " + releases + " releases: " + t, t);
+            return;
+        }
+        final int delay = (int) Math.min(this.maxRetryDelay, (long) this.baseRetryDelay << releases);
+        this.rs.getLogger().warning("Releasing job " + bsj.getId() + " for " + delay + "s after a transient failure: " + t);
+        try {
+            bsj.getClient().release(bsj, priority, delay);
+        } catch (final BeanstalkException ex) {
+            // the job will be released by beanstalkd when its TTR runs out
+            this.rs.getLogger().log(Level.WARNING, "Could not release job " + bsj.getId() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private void delete(final BeanstalkJob bsj) {
+        try {
+            bsj.getClient().deleteJob(bsj);
+        } catch (final BeanstalkException ex) {
+            this.rs.getLogger().warning("Could not delete beanstalk job:");
+            this.rs.getLogger().log(Level.WARNING, ex.getMessage(), ex);
+        }
     }
 
     public void process() {
+        this.settle(false);
+        if (this.inFlight >= this.maxInFlight) {
+            this.settle(true);
+            return;
+        }
         final BeanstalkJob bsj;
         try {
-            bsj = this.bsc.reserve(null); // wait indefinitely for a job
-            if (bsj == null) return;
+            bsj = this.reserve();
         } catch (final BeanstalkException ex) {
             this.rs.getLogger().warning("Could not reserve a BeanstalkJob:");
             this.rs.getLogger().log(Level.WARNING, ex.getMessage(), ex);
-            ex.printStackTrace();
+            this.pause();
+            return;
+        }
+        if (bsj == null) {
+            if (this.inFlight > 0) this.settle(true);
             return;
         }
-        final DB db = this.rs.getMongoDB().getDB();
-        db.requestStart();
         try {
-            db.requestEnsureConnection();
-            final Request r = new Request(new JSONObject(new String(bsj.getData()))); // we should be passed a JSONObject in String form
-            final DBCollection dbc = db.getCollection(this.collection);
-            dbc.insert(r.createMongoVersion());
-        } catch (final JSONException ex) {
-            this.rs.getLogger().warning("A JSONException occurred while processing data:");
-            this.rs.getLogger().log(Level.WARNING, ex.getMessage(), ex);
-        } finally {
-            db.requestDone();
+            this.pipeline.submit(new ProcessingJob(bsj, this));
+            this.inFlight++;
+        } catch (final InterruptedException ex) {
+            // the job will be released by beanstalkd when its TTR runs out
+            Thread.currentThread().interrupt();
+            this.running = false;
         }
+    }
+
+    /**
+     * Waits a second before trying again after a failure outside any job.
+     */
+    private void pause() {
         try {
-            this.bsc.deleteJob(bsj);
-        } catch (final BeanstalkException ex) {
-            this.rs.getLogger().warning("Could not delete beanstalk job:");
-            this.rs.getLogger().log(Level.WARNING, ex.getMessage(), ex);
+            Thread.sleep(1000L);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.running = false;
         }
     }
 
     @Override
     public void run() {
         while (this.running) {
-            this.process();
+            try {
+                this.process();
+            } catch (final Throwable t) {
+                // a worker must never die, or the server permanently loses capacity
+                this.rs.getLogger().severe("An unexpected exception escaped a processor:");
+                this.rs.getLogger().log(Level.SEVERE, t.getMessage(), t);
+                this.pause();
+            }
         }
-        this.bsc.close();
+        for (final BeanstalkClient bsc : this.clients) bsc.close();
     }
 
     public void setRunning(final boolean running) {
         this.running = running;
     }
 
+    private enum Failure {
+        /**
+         * The report was already stored, so the job is done.
+         */
+        STORED,
+        /**
+         * The failure may go away, so the job should be retried later.
+         */
+        TRANSIENT,
+        /**
+         * The job can never be processed.
+         */
+        POISON
+    }
+
 }
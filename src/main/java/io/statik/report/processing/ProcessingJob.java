@@ -0,0 +1,98 @@
+package io.statik.report.processing;
+
+import com.trendrr.beanstalk.BeanstalkJob;
+import io.statik.report.QueuedReport;
+
+/**
+ * A reserved beanstalkd job on its way through the processing {@link io.statik.report.processing.Pipeline}.
+ */
+public class ProcessingJob {
+
+    private final BeanstalkJob job;
+    private final ProcessRunnable source;
+    private QueuedReport report = null;
+    private QueuedReport storedReport = null;
+    private long dedupKey = 0L;
+    private Throwable failure = null;
+    private boolean complete = false;
+
+    ProcessingJob(final BeanstalkJob job, final ProcessRunnable source) {
+        this.job = job;
+        this.source = source;
+    }
+
+    /**
+     * Skips the stages left before the job is acknowledged, such as for a duplicate report.
+     */
+    public void complete() {
+        this.complete = true;
+    }
+
+    /**
+     * Marks the job as failed. It leaves the pipeline, and is released or buried depending on the failure.
+     *
+     * @param failure Why the job failed
+     */
+    public void fail(final Throwable failure) {
+        if (this.failure == null) this.failure = failure;
+    }
+
+    /**
+     * Gets the key the report is deduplicated by.
+     *
+     * @return Key, or 0 if the report is not deduplicated
+     */
+    public long getDedupKey() {
+        return this.dedupKey;
+    }
+
+    public void setDedupKey(final long dedupKey) {
+        this.dedupKey = dedupKey;
+    }
+
+    public Throwable getFailure() {
+        return this.failure;
+    }
+
+    public BeanstalkJob getJob() {
+        return this.job;
+    }
+
+    /**
+     * Gets the report, as decoded from the job and enriched since.
+     *
+     * @return QueuedReport, or null if the job has not been decoded
+     */
+    public QueuedReport getReport() {
+        return this.report;
+    }
+
+    public void setReport(final QueuedReport report) {
+        this.report = report;
+    }
+
+    ProcessRunnable getSource() {
+        return this.source;
+    }
+
+    /**
+     * Gets the report to write to the data collection, which may leave out what is stored elsewhere.
+     *
+     * @return QueuedReport, the {@link #getReport() report} itself unless set otherwise
+     */
+    public QueuedReport getStoredReport() {
+        return this.storedReport == null ? this.report : this.storedReport;
+    }
+
+    public void setStoredReport(final QueuedReport storedReport) {
+        this.storedReport = storedReport;
+    }
+
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    public boolean isFailed() {
+        return this.failure != null;
+    }
+}
@@ -0,0 +1,31 @@
+package io.statik.report.processing;
+
+import com.mongodb.MongoException;
+import io.statik.report.QueuedReport;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A storage layout for processed reports.
+ */
+public interface ReportStore {
+
+    /**
+     * Persists a sanitized report.
+     *
+     * @param qr Report to store
+     * @throws MongoException If the report could not be written
+     */
+    void store(QueuedReport qr) throws MongoException;
+
+    /**
+     * Persists several sanitized reports, in as few round trips as the layout allows.
+     *
+     * @param reports Reports to store
+     * @return Failure of each report that could not be written, by index in the list (empty if all were written)
+     * @throws MongoException If it is unknown which reports were written
+     */
+    Map<Integer, MongoException> storeAll(List<QueuedReport> reports) throws MongoException;
+
+}
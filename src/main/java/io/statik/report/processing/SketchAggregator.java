@@ -0,0 +1,143 @@
+package io.statik.report.processing;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import io.statik.report.QueuedReport;
+import io.statik.report.ReportServer;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Maintains {@link io.statik.report.processing.LogHistogram}s of the numeric report fields per hour.
+ * <p/>
+ * Workers record into in-memory histograms, which are flushed every <code>config.sketches.flush_seconds</code> into
+ * the sketches collection. Each node owns one document per field per hour holding its serialized histogram, so
+ * flushes never contend between nodes; queries merge the documents of every node over the requested hours.
+ * <p/>
+ * Sampled reports are kept in separate histograms per sample rate, and queries weight each by one over its rate, so
+ * hours that mixed rates still describe every server.
+ */
+public class SketchAggregator implements Runnable {
+
+    private static final long HOUR = 3600000L;
+    private static final String[] FIELDS = {"system.cores", "system.memory", "minecraft.players"};
+    private final ReportServer rs;
+    private Map<String, LogHistogram> pending = new HashMap<>();
+
+    public SketchAggregator(final ReportServer rs) {
+        this.rs = rs;
+    }
+
+    private static String getId(final String node, final String field, final long hour, final double rate) {
+        return rate >= 1D ? node + ":" + field + ":" + hour : node + ":" + field + ":" + hour + ":" + rate;
+    }
+
+    /**
+     * Merges the histograms of every node for a field over a range of hours.
+     *
+     * @param dbc       Sketches collection
+     * @param field     Field, such as <code>minecraft.players</code>
+     * @param fromHour  First hour, in hours since the epoch (inclusive)
+     * @param untilHour Last hour, in hours since the epoch (exclusive)
+     * @return Merged histogram (empty if nothing was recorded)
+     */
+    public static LogHistogram query(final DBCollection dbc, final String field, final long fromHour, final long untilHour) {
+        final LogHistogram merged = new LogHistogram();
+        final BasicDBObject query = new BasicDBObject("field", field)
+            .append("hour", new BasicDBObject("$gte", fromHour).append("$lt", untilHour));
+        for (final DBObject dbo : dbc.find(query, new BasicDBObject("sketch", 1).append("sample_rate", 1))) {
+            final Object sketch = dbo.get("sketch");
+            final Object rate = dbo.get("sample_rate");
+            final double weight = rate instanceof Number && ((Number) rate).doubleValue() > 0D ? 1D / ((Number) rate).doubleValue() : 1D;
+            if (sketch instanceof byte[]) merged.merge(LogHistogram.fromBytes((byte[]) sketch), weight);
+        }
+        return merged;
+    }
+
+    /**
+     * Writes pending histograms, merging each with the node's stored histogram for the same field and hour.
+     */
+    public void flush() {
+        final Map<String, LogHistogram> flushing;
+        synchronized (this) {
+            if (this.pending.isEmpty()) return;
+            flushing = this.pending;
+            this.pending = new HashMap<>();
+        }
+        final DBCollection dbc = this.rs.getMongoDB().getCollection("sketches");
+        final String node = this.rs.getNodeId();
+        for (final Map.Entry<String, LogHistogram> entry : flushing.entrySet()) {
+            final String[] parts = entry.getKey().split(":");
+            final String field = parts[0];
+            final long hour = Long.parseLong(parts[1]);
+            final double rate = Double.parseDouble(parts[2]);
+            final String id = SketchAggregator.getId(node, field, hour, rate);
+            final LogHistogram lh = entry.getValue();
+            try {
+                final DBObject existing = dbc.findOne(new BasicDBObject("_id", id));
+                final LogHistogram stored = existing != null && existing.get("sketch") instanceof byte[]
+                    ? LogHistogram.fromBytes((byte[]) existing.get("sketch"))
+                    : new LogHistogram();
+                stored.merge(lh);
+                dbc.update(
+                    new BasicDBObject("_id", id),
+                    new BasicDBObject("_id", id)
+                        .append("node", node)
+                        .append("field", field)
+                        .append("hour", hour)
+                        .append("sample_rate", rate)
+                        .append("count", stored.getCount())
+                        .append("sketch", stored.toBytes()),
+                    true,
+                    false
+                );
+            } catch (final MongoException ex) {
+                this.rs.getLogger().log(Level.WARNING, "Could not flush the " + field + " sketch: " + ex.getMessage(), ex);
+                synchronized (this) {
+                    final LogHistogram current = this.pending.get(entry.getKey());
+                    if (current == null) this.pending.put(entry.getKey(), lh);
+                    else current.merge(lh);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the numeric fields of a stored report.
+     *
+     * @param qr Stored report
+     */
+    public void record(final QueuedReport qr) {
+        final long received = qr.getReceived() > 0L ? qr.getReceived() : System.currentTimeMillis();
+        final long hour = received / SketchAggregator.HOUR;
+        final double rate = qr.getReport().getConfigRoot().optDouble("sample_rate", 1D);
+        synchronized (this) {
+            for (final String field : SketchAggregator.FIELDS) {
+                final int split = field.indexOf('.');
+                final JSONObject parent = qr.getReport().getJSONObject(field.substring(0, split));
+                if (parent == null) continue;
+                final double value = parent.optDouble(field.substring(split + 1), Double.NaN);
+                if (Double.isNaN(value)) continue;
+                final String key = field + ":" + hour + ":" + rate;
+                LogHistogram lh = this.pending.get(key);
+                if (lh == null) this.pending.put(key, lh = new LogHistogram());
+                lh.record(value);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.flush();
+        } catch (final RuntimeException ex) {
+            // an escaped exception would cancel the scheduled flush for good
+            this.rs.getLogger().log(Level.SEVERE, "An unexpected exception escaped flushing the sketches: " + ex.getMessage(), ex);
+        }
+    }
+}
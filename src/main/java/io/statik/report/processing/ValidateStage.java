@@ -0,0 +1,38 @@
+package io.statik.report.processing;
+
+import io.statik.report.ReportSchema;
+import io.statik.report.ReportServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Pipeline stage that checks reports against the {@link io.statik.report.ReportSchema} again, so a job queued by an
+ * older or misconfigured ingest node is buried instead of stored. Reports are left unchanged.
+ */
+public class ValidateStage implements PipelineStage {
+
+    private final ReportSchema schema;
+
+    public ValidateStage(final ReportServer rs) {
+        // worker mode has no schema of its own
+        this.schema = rs.getReportSchema() != null ? rs.getReportSchema() : new ReportSchema(rs.getConfiguration());
+    }
+
+    @Override
+    public void process(final List<ProcessingJob> jobs) {
+        for (final ProcessingJob job : jobs) {
+            final JSONObject report = job.getReport().getReport().getConfigRoot();
+            try {
+                final JSONObject copy = new JSONObject(report, JSONObject.getNames(report));
+                // a delta report has been sanitized to refer to its plugin set, which stands in for its plugins
+                if (copy.has("plugin_set") && !copy.has("plugins")) copy.put("plugins", new JSONArray());
+                this.schema.validate(copy);
+            } catch (final JSONException ex) {
+                job.fail(ex);
+            }
+        }
+    }
+}